@@ -32,7 +32,7 @@ public class BudgetController {
         Budget budget = budgetService.getBudget(id);
         User currentUser = SecurityUtils.getCurrentUser(userService);
 
-        return new ModelAndView(new XlsAllocationsImportView(), ImmutableMap.of("proposals", allocationService.prepareAllocationProposals(budget, currentUser)));
+        return new ModelAndView(new XlsxAllocationsImportView(), ImmutableMap.of("proposals", allocationService.streamAllocationProposals(budget, currentUser)));
     }
 
 }
@@ -13,6 +13,10 @@ import javax.servlet.http.HttpServletResponse;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * @deprecated limited to 65536 rows and built in memory, use {@link XlsxAllocationsImportView}
+ */
+@Deprecated
 public class XlsAllocationsImportView extends AbstractXlsView {
 
     public static final int HEADERS_INDEX = 1;
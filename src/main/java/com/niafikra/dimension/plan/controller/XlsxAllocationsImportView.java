@@ -0,0 +1,85 @@
+package com.niafikra.dimension.plan.controller;
+
+import com.niafikra.dimension.plan.domain.AllocationProposal;
+import org.apache.poi.ss.usermodel.Name;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.springframework.web.servlet.view.document.AbstractXlsxStreamingView;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static com.niafikra.dimension.plan.service.AllocationImportReader.*;
+
+/**
+ * Allocations import template written as a streaming xlsx workbook, only the last {@link #ROW_WINDOW} rows
+ * are kept in memory while the proposals stream is consumed.
+ * <p>
+ * The layout is the one read back by {@link com.niafikra.dimension.plan.service.AllocationImportReader}
+ */
+public class XlsxAllocationsImportView extends AbstractXlsxStreamingView {
+
+    public static final int ROW_WINDOW = 100;
+
+    public static final String PROPOSED_AMOUNTS_NAME = "ProposedAmounts";
+
+    @Override
+    protected SXSSFWorkbook createWorkbook(Map<String, Object> model, HttpServletRequest request) {
+        return new SXSSFWorkbook(ROW_WINDOW);
+    }
+
+    @Override
+    protected void buildExcelDocument(Map<String, Object> model, Workbook workbook, HttpServletRequest request, HttpServletResponse response) throws Exception {
+        Stream<AllocationProposal> proposals = (Stream<AllocationProposal>) model.get("proposals");
+
+        response.setHeader("Content-Disposition", "attachment; filename=\"allocations.xlsx\"");
+
+        Sheet sheet = workbook.createSheet("Allocation");
+        sheet.setDefaultColumnWidth(35);
+
+        //the total row is flushed before the number of proposals is known, so it sums a named range
+        //which is defined once all the proposal rows are written
+        Row totalRow = sheet.createRow(TOTAL_ROW);
+        totalRow.createCell(0).setCellValue("Total");
+        totalRow.createCell(1).setCellFormula("SUM(" + PROPOSED_AMOUNTS_NAME + ")");
+
+        Row header = sheet.createRow(HEADERS_ROW);
+        header.createCell(ROLE_ID_COLUMN).setCellValue("RoleId");
+        header.createCell(RESOURCE_ID_COLUMN).setCellValue("ResourceId");
+        header.createCell(ROLE_COLUMN).setCellValue("Role");
+        header.createCell(RESOURCE_COLUMN).setCellValue("Resource");
+        header.createCell(PROPOSED_AMOUNT_COLUMN).setCellValue("ProposedAmount");
+        header.createCell(DESCRIPTION_COLUMN).setCellValue("Description");
+        header.createCell(REASON_COLUMN).setCellValue("Reason");
+
+        int counter = ALLOCATIONS_START_ROW;
+        try (Stream<AllocationProposal> stream = proposals) {
+            Iterator<AllocationProposal> iterator = stream.iterator();
+            while (iterator.hasNext()) {
+                AllocationProposal proposal = iterator.next();
+                Row row = sheet.createRow(counter++);
+                row.createCell(ROLE_ID_COLUMN).setCellValue(proposal.getRole().getId());
+                row.createCell(RESOURCE_ID_COLUMN).setCellValue(proposal.getResource().getId());
+                row.createCell(ROLE_COLUMN).setCellValue(proposal.getRole().getName());
+                row.createCell(RESOURCE_COLUMN).setCellValue(proposal.getResource().getName());
+                row.createCell(PROPOSED_AMOUNT_COLUMN).setCellValue(proposal.getProposedAmount().toBaseCurrency().getAmount().doubleValue());
+                row.createCell(DESCRIPTION_COLUMN).setCellValue(proposal.getDescription());
+                row.createCell(REASON_COLUMN).setCellValue(proposal.getReason());
+            }
+        }
+
+        //only the proposal rows, when there are none the range is the empty first proposal row
+        String proposedAmountCol = CellReference.convertNumToColString(PROPOSED_AMOUNT_COLUMN);
+        int lastRow = Math.max(counter, ALLOCATIONS_START_ROW + 1);
+        Name proposedAmounts = workbook.createName();
+        proposedAmounts.setNameName(PROPOSED_AMOUNTS_NAME);
+        proposedAmounts.setRefersToFormula(String.format("'%s'!$%s$%d:$%s$%d",
+                sheet.getSheetName(), proposedAmountCol, ALLOCATIONS_START_ROW + 1, proposedAmountCol, lastRow));
+    }
+}
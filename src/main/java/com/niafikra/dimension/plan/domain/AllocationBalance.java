@@ -0,0 +1,135 @@
+package com.niafikra.dimension.plan.domain;
+
+import com.niafikra.dimension.money.Money;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import javax.persistence.*;
+import javax.validation.constraints.NotNull;
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+/**
+ * Running totals of a budget line (budget, role and resource)
+ * <p>
+ * The totals are maintained by the services on every write of allocations, expenses and requisitions
+ * so that balance checks do not need to recompute them from the source rows
+ */
+@Entity
+@Table(name = "PL_AllocationBalance")
+@Setter
+@Getter
+@NoArgsConstructor
+@EqualsAndHashCode(of = {"id"})
+public class AllocationBalance {
+
+    @EmbeddedId
+    private Key id;
+
+    @Version
+    private Integer version;
+
+    @UpdateTimestamp
+    private LocalDateTime lastUpdated;
+
+    @NotNull
+    @Embedded
+    @AttributeOverrides({
+            @AttributeOverride(name = "amount", column = @Column(name = "proposed_amount", precision = 48, scale = 12)),
+            @AttributeOverride(name = "date", column = @Column(name = "proposed_date")),
+            @AttributeOverride(name = "currency", column = @Column(name = "proposed_currency"))
+    })
+    private Money proposed;
+
+    @NotNull
+    @Embedded
+    @AttributeOverrides({
+            @AttributeOverride(name = "amount", column = @Column(name = "allocated_amount", precision = 48, scale = 12)),
+            @AttributeOverride(name = "date", column = @Column(name = "allocated_date")),
+            @AttributeOverride(name = "currency", column = @Column(name = "allocated_currency"))
+    })
+    private Money allocated;
+
+    @NotNull
+    @Embedded
+    @AttributeOverrides({
+            @AttributeOverride(name = "amount", column = @Column(name = "expended_amount", precision = 48, scale = 12)),
+            @AttributeOverride(name = "date", column = @Column(name = "expended_date")),
+            @AttributeOverride(name = "currency", column = @Column(name = "expended_currency"))
+    })
+    private Money expended;
+
+    @NotNull
+    @Embedded
+    @AttributeOverrides({
+            @AttributeOverride(name = "amount", column = @Column(name = "pending_payment_amount", precision = 48, scale = 12)),
+            @AttributeOverride(name = "date", column = @Column(name = "pending_payment_date")),
+            @AttributeOverride(name = "currency", column = @Column(name = "pending_payment_currency"))
+    })
+    private Money pendingPayment;
+
+    @NotNull
+    @Embedded
+    @AttributeOverrides({
+            @AttributeOverride(name = "amount", column = @Column(name = "pending_approval_amount", precision = 48, scale = 12)),
+            @AttributeOverride(name = "date", column = @Column(name = "pending_approval_date")),
+            @AttributeOverride(name = "currency", column = @Column(name = "pending_approval_currency"))
+    })
+    private Money pendingApproval;
+
+    public AllocationBalance(Key id) {
+        this.id = id;
+        this.proposed = Money.getZERO();
+        this.allocated = Money.getZERO();
+        this.expended = Money.getZERO();
+        this.pendingPayment = Money.getZERO();
+        this.pendingApproval = Money.getZERO();
+    }
+
+    /**
+     * Allocated amount which is not yet spent
+     */
+    public Money getBalance() {
+        return allocated.minus(expended);
+    }
+
+    /**
+     * Balance less the amount of approved requisitions which are still waiting for payment
+     */
+    public Money getGrossBalance() {
+        return getBalance().minus(pendingPayment);
+    }
+
+    public String toString() {
+        return String.format("%s of %s allocated for %s", getBalance(), allocated, id);
+    }
+
+    @Embeddable
+    @Getter
+    @NoArgsConstructor
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    public static class Key implements Serializable {
+
+        @Column(name = "budget_id")
+        private Long budgetId;
+
+        @Column(name = "role_id")
+        private Long roleId;
+
+        @Column(name = "resource_id")
+        private Long resourceId;
+
+        public Key(Budget budget, Role role, Resource resource) {
+            this(budget.getId(), role.getId(), resource.getId());
+        }
+
+        public String toString() {
+            return String.format("budget:%d role:%d resource:%d", budgetId, roleId, resourceId);
+        }
+    }
+}
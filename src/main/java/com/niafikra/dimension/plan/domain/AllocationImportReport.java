@@ -0,0 +1,63 @@
+package com.niafikra.dimension.plan.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Outcome of an allocations import, the allocations are only changed when there are no errors
+ */
+@Getter
+@Setter
+public class AllocationImportReport {
+
+    private int rowCount;
+
+    private int created;
+
+    private int updated;
+
+    private int deleted;
+
+    private List<RowError> errors = new ArrayList<>();
+
+    public void addError(int rowNumber, String message) {
+        errors.add(new RowError(rowNumber, message));
+    }
+
+    /**
+     * Errors which do not belong to a specific row like exceeding the budget funds
+     */
+    public void addError(String message) {
+        addError(0, message);
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    public String toString() {
+        if (!hasErrors())
+            return String.format("Imported %d rows: %d created, %d updated, %d deleted", rowCount, created, updated, deleted);
+
+        return errors.stream()
+                .map(RowError::toString)
+                .collect(Collectors.joining("\n", "Allocations import failed:\n", ""));
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class RowError {
+        private int rowNumber;
+        private String message;
+
+        public String toString() {
+            return rowNumber > 0 ? "Row " + rowNumber + ": " + message : message;
+        }
+    }
+}
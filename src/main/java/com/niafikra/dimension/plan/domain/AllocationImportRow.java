@@ -0,0 +1,27 @@
+package com.niafikra.dimension.plan.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.math.BigDecimal;
+
+/**
+ * A single allocation line read from an allocations import spreadsheet
+ */
+@Data
+@AllArgsConstructor
+public class AllocationImportRow {
+
+    //the spreadsheet row number as shown to the user (starting from 1)
+    private int rowNumber;
+
+    private Long roleId;
+
+    private Long resourceId;
+
+    private BigDecimal proposedAmount;
+
+    private String description;
+
+    private String reason;
+}
@@ -0,0 +1,29 @@
+package com.niafikra.dimension.plan.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.LocalDate;
+
+/**
+ * Lightweight view of a budget for selection lists, read without loading the budget entity
+ */
+@Getter
+@AllArgsConstructor
+public class BudgetOption {
+
+    private final Long id;
+
+    private final String title;
+
+    private final String costCenter;
+
+    private final LocalDate startDate;
+
+    private final LocalDate endDate;
+
+    @Override
+    public String toString() {
+        return title;
+    }
+}
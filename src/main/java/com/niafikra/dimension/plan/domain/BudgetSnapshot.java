@@ -0,0 +1,35 @@
+package com.niafikra.dimension.plan.domain;
+
+import com.niafikra.dimension.money.Money;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+
+/**
+ * Key figures of a budget calculated together at a point in time, used by the budget overview screens
+ */
+@Getter
+@AllArgsConstructor
+public final class BudgetSnapshot {
+
+    private final Long budgetId;
+
+    private final Integer version;
+
+    private final Money proposed;
+
+    private final Money allocated;
+
+    private final Money expenditure;
+
+    //allocated less expenditure
+    private final Money balance;
+
+    private final Money pendingPayments;
+
+    //balance less pending payments
+    private final Money grossBalance;
+
+    private final LocalDateTime calculatedAt;
+}
@@ -94,6 +94,10 @@ public class Payment {
     //is this settlement a payment? otherwise it is a receipt
     private boolean paid;
 
+    //Key of the request that recorded this settlement, a repeated request with the same key is not recorded again
+    @Column(unique = true)
+    private String idempotencyKey;
+
     public Payment(String associate, Money amount, boolean paid) {
         this.amount = amount;
         this.paid = paid;
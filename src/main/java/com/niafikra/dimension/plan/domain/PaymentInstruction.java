@@ -0,0 +1,28 @@
+package com.niafikra.dimension.plan.domain;
+
+import com.niafikra.dimension.money.Money;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+/**
+ * A single requisition payment of a payment run
+ */
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class PaymentInstruction {
+
+    private Requisition requisition;
+
+    private Money amount;
+
+    private PaymentMethod method;
+
+    private String reference;
+
+    //Generated once per instruction by the caller so submitting the run again does not pay the instruction twice
+    private String idempotencyKey;
+}
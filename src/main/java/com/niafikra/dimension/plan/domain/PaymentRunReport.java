@@ -0,0 +1,72 @@
+package com.niafikra.dimension.plan.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of each instruction of a payment run, in the order of the instructions
+ */
+@Getter
+public class PaymentRunReport {
+
+    public enum Status {
+        //paid by this run
+        PAID,
+        //paid earlier under the same idempotency key
+        ALREADY_PAID,
+        //failed validation, nothing was written
+        REJECTED,
+        //the transaction of the instruction was rolled back
+        FAILED
+    }
+
+    private List<Item> items = new ArrayList<>();
+
+    public void add(Item item) {
+        items.add(item);
+    }
+
+    public void addAll(List<Item> chunkItems) {
+        items.addAll(chunkItems);
+    }
+
+    public long count(Status status) {
+        return items.stream().filter(item -> item.getStatus() == status).count();
+    }
+
+    public List<Item> getItems() {
+        return Collections.unmodifiableList(items);
+    }
+
+    public String toString() {
+        return String.format("Payment run of %d instructions: %d paid, %d already paid, %d rejected, %d failed",
+                items.size(), count(Status.PAID), count(Status.ALREADY_PAID), count(Status.REJECTED), count(Status.FAILED));
+    }
+
+    @Data
+    @AllArgsConstructor
+    public static class Item {
+        private PaymentInstruction instruction;
+        private Status status;
+        //the expense recording the payment when paid
+        private Expense expense;
+        private String message;
+
+        public static Item paid(PaymentInstruction instruction, Expense expense, Status status) {
+            return new Item(instruction, status, expense, null);
+        }
+
+        public static Item rejected(PaymentInstruction instruction, String message) {
+            return new Item(instruction, Status.REJECTED, null, message);
+        }
+
+        public static Item failed(PaymentInstruction instruction, String message) {
+            return new Item(instruction, Status.FAILED, null, message);
+        }
+    }
+}
@@ -29,6 +29,10 @@ import java.util.stream.Collectors;
  */
 @Entity
 @Table(name = "PL_Requisition")
+@NamedEntityGraph(name = Requisition.DETAIL_GRAPH, attributeNodes = {
+        @NamedAttributeNode("expenses"),
+        @NamedAttributeNode("attachments")
+})
 @Setter
 @Getter
 @EqualsAndHashCode(of = {"id"})
@@ -38,6 +42,9 @@ public class Requisition implements Approvable {
     public static final String APPROVAL_TYPE = "Requisition";
     public static final String APPROVAL_CRITERIA = "RequisitionApprovalCriteria";
 
+    //loads the requisition with its expenses and attachments in a single select for detail views
+    public static final String DETAIL_GRAPH = "Requisition.detail";
+
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
@@ -0,0 +1,70 @@
+package com.niafikra.dimension.plan.domain;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.Setter;
+
+import java.time.LocalDateTime;
+
+/**
+ * Light weight view of a requisition for list pages, loaded without the requisition expenses and attachments
+ */
+@Getter
+@RequiredArgsConstructor
+public class RequisitionSummary {
+
+    private final Long id;
+
+    private final LocalDateTime timeCreated;
+
+    private final Long budgetId;
+
+    private final String budgetTitle;
+
+    private final String role;
+
+    private final String resource;
+
+    private final Money requestedAmount;
+
+    private final Money approvedAmount;
+
+    private final Boolean approved;
+
+    private final boolean fulfilled;
+
+    //whether any payment is made
+    private final boolean paymentProcessed;
+
+    private final User creator;
+
+    //whether the requisition is submitted for approval, resolved for the whole page from the approval trackers
+    @Setter
+    private boolean submitted = true;
+
+    public boolean isWaiting() {
+        return approved == null;
+    }
+
+    /**
+     * Same status as {@link com.niafikra.dimension.plan.service.RequisitionService#getStatus}
+     */
+    public String getStatus() {
+        if (!submitted) return "Draft";
+        else if (approved == null) return "Waiting for approval";
+        else if (!approved) return "Declined";
+        else if (fulfilled) return "Completely paid";
+        else if (paymentProcessed) return "Partially paid";
+        else return "Pending Payment";
+    }
+
+    public String getApprovalReference() {
+        return Requisition.APPROVAL_REF_PREFIX + id;
+    }
+
+    public String toString() {
+        return String.format("%s of %s for %s by %s", approvedAmount, requestedAmount, resource, role);
+    }
+}
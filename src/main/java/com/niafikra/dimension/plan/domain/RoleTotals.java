@@ -0,0 +1,51 @@
+package com.niafikra.dimension.plan.domain;
+
+import com.niafikra.dimension.money.Money;
+import lombok.Getter;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Totals of a measure for each of a set of roles and over all of them, roles without any amount are zero
+ */
+@Getter
+public class RoleTotals {
+
+    private final Map<Long, Money> byRole;
+
+    private final Money total;
+
+    private RoleTotals(Map<Long, Money> byRole) {
+        this.byRole = Collections.unmodifiableMap(byRole);
+        this.total = byRole.values().stream().reduce(Money.getZERO(), (total, amount) -> total.plus(amount));
+    }
+
+    /**
+     * @param totals grouped totals keyed by role id, roles absent from the totals get zero
+     */
+    public static RoleTotals of(Collection<Long> roleIds, Map<Long, Money> totals) {
+        Map<Long, Money> byRole = new LinkedHashMap<>();
+        roleIds.forEach(roleId -> byRole.put(roleId, totals.getOrDefault(roleId, Money.getZERO())));
+        return new RoleTotals(byRole);
+    }
+
+    public static RoleTotals zero(Collection<Long> roleIds) {
+        return of(roleIds, Collections.emptyMap());
+    }
+
+    public Money get(Role role) {
+        return byRole.getOrDefault(role.getId(), Money.getZERO());
+    }
+
+    /**
+     * Difference of each role total, roles only in the other totals are ignored
+     */
+    public RoleTotals minus(RoleTotals other) {
+        Map<Long, Money> difference = new LinkedHashMap<>();
+        byRole.forEach((roleId, amount) -> difference.put(roleId, amount.minus(other.byRole.getOrDefault(roleId, Money.getZERO()))));
+        return new RoleTotals(difference);
+    }
+}
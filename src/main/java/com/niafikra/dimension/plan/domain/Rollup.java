@@ -0,0 +1,115 @@
+package com.niafikra.dimension.plan.domain;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import lombok.AccessLevel;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import javax.persistence.*;
+import javax.validation.constraints.NotNull;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+
+/**
+ * Total of a metric (expenditure or approved requisitions) over a day or a month for a cost center, role,
+ * resource and user
+ * <p>
+ * Expenditure is bucketed by the payment time and the associated user, requisitions by the time created
+ * and the creator. The buckets are refreshed by the services on every write so that dashboard totals
+ * over whole months do not rescan the source rows.
+ * <p>
+ * The unique key uses the user key rather than the nullable user, since most databases do not treat two
+ * nulls as a conflict the buckets without a user would not be unique
+ */
+@Entity
+@Table(name = "PL_Rollup",
+        uniqueConstraints = @UniqueConstraint(columnNames = {
+                "metric", "granularity", "bucket_start", "cost_center_id", "role_id", "resource_id", "user_key"}),
+        indexes = @Index(columnList = "metric, granularity, bucket_start"))
+@Setter
+@Getter
+@NoArgsConstructor
+@EqualsAndHashCode(of = {"id"})
+public class Rollup {
+
+    //user key of the buckets without a user
+    public static final long NO_USER = 0L;
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Version
+    private Integer version;
+
+    @UpdateTimestamp
+    private LocalDateTime lastUpdated;
+
+    @NotNull
+    @Enumerated(EnumType.STRING)
+    private Metric metric;
+
+    @NotNull
+    @Enumerated(EnumType.STRING)
+    private Granularity granularity;
+
+    //first day of the day or month
+    @NotNull
+    @Column(name = "bucket_start")
+    private LocalDate bucketStart;
+
+    @NotNull
+    @ManyToOne
+    private CostCenter costCenter;
+
+    @NotNull
+    @ManyToOne
+    private Role role;
+
+    @NotNull
+    @ManyToOne
+    private Resource resource;
+
+    @ManyToOne
+    private User user;
+
+    //id of the user or NO_USER, set with the user
+    @NotNull
+    @Setter(AccessLevel.NONE)
+    @Column(name = "user_key", nullable = false)
+    private Long userKey = NO_USER;
+
+    @NotNull
+    @Embedded
+    @AttributeOverrides({
+            @AttributeOverride(name = "amount", column = @Column(name = "rollup_amount", precision = 48, scale = 12)),
+            @AttributeOverride(name = "date", column = @Column(name = "rollup_date")),
+            @AttributeOverride(name = "currency", column = @Column(name = "rollup_currency"))
+    })
+    private Money amount;
+
+    public void setUser(User user) {
+        this.user = user;
+        this.userKey = keyOf(user);
+    }
+
+    public static long keyOf(User user) {
+        return user != null ? user.getId() : NO_USER;
+    }
+
+    public enum Metric {
+        EXPENDITURE, REQUISITIONS
+    }
+
+    public enum Granularity {
+        DAY, MONTH;
+
+        public LocalDate bucketOf(LocalDate date) {
+            return this == DAY ? date : date.withDayOfMonth(1);
+        }
+    }
+}
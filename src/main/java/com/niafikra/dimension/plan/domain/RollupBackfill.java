@@ -0,0 +1,48 @@
+package com.niafikra.dimension.plan.domain;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+
+/**
+ * Marker saved once the historic {@link Rollup} buckets are completely built, until then the month totals
+ * are computed from the source rows
+ */
+@Entity
+@Table(name = "PL_RollupBackfill")
+@Setter
+@Getter
+@NoArgsConstructor
+@EqualsAndHashCode(of = {"id"})
+public class RollupBackfill {
+
+    public static final Long COMPLETE = 1L;
+
+    @Id
+    private Long id;
+
+    @NotNull
+    private LocalDateTime timeCompleted;
+
+    //first and last months backfilled as yyyy-MM
+    @NotNull
+    private String firstMonth;
+
+    @NotNull
+    private String lastMonth;
+
+    public RollupBackfill(YearMonth firstMonth, YearMonth lastMonth) {
+        this.id = COMPLETE;
+        this.timeCompleted = LocalDateTime.now();
+        this.firstMonth = firstMonth.toString();
+        this.lastMonth = lastMonth.toString();
+    }
+}
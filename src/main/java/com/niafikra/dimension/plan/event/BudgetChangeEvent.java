@@ -0,0 +1,21 @@
+package com.niafikra.dimension.plan.event;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Published when the allocations, expenses or requisitions of a budget change
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class BudgetChangeEvent {
+
+    //the changed budget or null when all budgets changed
+    private final Long budgetId;
+
+    public boolean isAllBudgets() {
+        return budgetId == null;
+    }
+}
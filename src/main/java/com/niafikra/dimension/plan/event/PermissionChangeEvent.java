@@ -0,0 +1,17 @@
+package com.niafikra.dimension.plan.event;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Published when the permissions of a cost center or role may have changed, when it is saved or deleted
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class PermissionChangeEvent {
+
+    //the saved or deleted cost center or role
+    private final Object source;
+}
@@ -0,0 +1,9 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.core.util.repository.BaseRepository;
+import com.niafikra.dimension.plan.domain.AllocationBalance;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface AllocationBalanceRepository extends BaseRepository<AllocationBalance, AllocationBalance.Key>, AllocationBalanceRepositoryCustom {
+}
@@ -0,0 +1,14 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.plan.domain.AllocationBalance;
+
+import java.util.Optional;
+
+public interface AllocationBalanceRepositoryCustom {
+
+    /**
+     * Read the current state of the ledger row locking it until the transaction completes,
+     * a row already loaded in the persistence context is refreshed so the change is applied on the stored totals
+     */
+    Optional<AllocationBalance> findLocked(AllocationBalance.Key key);
+}
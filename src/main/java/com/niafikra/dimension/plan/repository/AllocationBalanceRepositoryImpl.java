@@ -0,0 +1,23 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.plan.domain.AllocationBalance;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import java.util.Optional;
+
+public class AllocationBalanceRepositoryImpl implements AllocationBalanceRepositoryCustom {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public Optional<AllocationBalance> findLocked(AllocationBalance.Key key) {
+        AllocationBalance balance = entityManager.find(AllocationBalance.class, key);
+        if (balance == null) return Optional.empty();
+
+        entityManager.refresh(balance, LockModeType.PESSIMISTIC_WRITE);
+        return Optional.of(balance);
+    }
+}
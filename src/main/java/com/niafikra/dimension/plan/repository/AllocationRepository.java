@@ -11,5 +11,5 @@ import org.springframework.stereotype.Repository;
  * @date 9/15/17 7:56 PM
  */
 @Repository
-public interface AllocationRepository extends BaseRepository<Allocation, Long> {
+public interface AllocationRepository extends BaseRepository<Allocation, Long>, AllocationRepositoryCustom {
 }
@@ -0,0 +1,30 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.money.Money;
+import com.querydsl.core.types.Expression;
+import com.querydsl.core.types.Predicate;
+
+import java.util.Map;
+
+/**
+ * Aggregate queries over allocations which are computed by the database
+ */
+public interface AllocationRepositoryCustom {
+
+    Money sumProposedAmount(Predicate predicate);
+
+    Money sumAllocatedAmount(Predicate predicate);
+
+    <K> Map<K, Money> sumProposedAmountBy(Predicate predicate, Expression<K> key);
+
+    <K> Map<K, Money> sumAllocatedAmountBy(Predicate predicate, Expression<K> key);
+
+    /**
+     * Copy the proposed amount to the allocated amount of every allocation of the budget with a single bulk update.
+     * Pending changes are flushed first and the allocations of the budget already loaded are refreshed afterwards
+     * so that no stale allocation stays loaded, other loaded entities are left managed
+     *
+     * @return the number of updated allocations
+     */
+    long copyProposedToAllocated(Long budgetId);
+}
@@ -0,0 +1,89 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.domain.Allocation;
+import com.niafikra.dimension.plan.domain.QAllocation;
+import com.querydsl.core.types.Expression;
+import com.querydsl.core.types.Predicate;
+import com.querydsl.jpa.JPQLQuery;
+import com.querydsl.jpa.impl.JPAQueryFactory;
+import org.hibernate.Session;
+import org.hibernate.engine.spi.EntityKey;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class AllocationRepositoryImpl implements AllocationRepositoryCustom {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public Money sumProposedAmount(Predicate predicate) {
+        return MoneyAggregates.sum(from(predicate), QAllocation.allocation.proposedAmount);
+    }
+
+    @Override
+    public Money sumAllocatedAmount(Predicate predicate) {
+        return MoneyAggregates.sum(from(predicate), QAllocation.allocation.allocatedAmount);
+    }
+
+    @Override
+    public <K> Map<K, Money> sumProposedAmountBy(Predicate predicate, Expression<K> key) {
+        return MoneyAggregates.sumBy(from(predicate), key, QAllocation.allocation.proposedAmount);
+    }
+
+    @Override
+    public <K> Map<K, Money> sumAllocatedAmountBy(Predicate predicate, Expression<K> key) {
+        return MoneyAggregates.sumBy(from(predicate), key, QAllocation.allocation.allocatedAmount);
+    }
+
+    @Override
+    public long copyProposedToAllocated(Long budgetId) {
+        QAllocation allocation = QAllocation.allocation;
+        entityManager.flush();
+        //bulk updates skip the entity callbacks so the version and update time are set here
+        long updated = new JPAQueryFactory(entityManager)
+                .update(allocation)
+                .set(allocation.allocatedAmount.amount, allocation.proposedAmount.amount)
+                .set(allocation.allocatedAmount.date, allocation.proposedAmount.date)
+                .set(allocation.allocatedAmount.currency, allocation.proposedAmount.currency)
+                .set(allocation.version, allocation.version.add(1))
+                .set(allocation.lastUpdated, LocalDateTime.now())
+                .where(allocation.budget.id.eq(budgetId))
+                .execute();
+
+        refreshLoaded(budgetId);
+        return updated;
+    }
+
+    /**
+     * The bulk update bypasses the persistence context, allocations of the budget already loaded in it would keep
+     * the old amounts and version so only those are refreshed, the other entities of the caller stay managed
+     */
+    private void refreshLoaded(Long budgetId) {
+        Session session = entityManager.unwrap(Session.class);
+        List<Allocation> loaded = new ArrayList<>();
+        for (Object key : session.getStatistics().getEntityKeys()) {
+            EntityKey entityKey = (EntityKey) key;
+            if (!Allocation.class.getName().equals(entityKey.getEntityName())) continue;
+
+            //already managed so it is returned from the persistence context without a select
+            Allocation allocation = entityManager.find(Allocation.class, entityKey.getIdentifier());
+            if (allocation != null && budgetId.equals(allocation.getBudget().getId()))
+                loaded.add(allocation);
+        }
+
+        loaded.forEach(entityManager::refresh);
+    }
+
+    private JPQLQuery<?> from(Predicate predicate) {
+        return new JPAQueryFactory(entityManager)
+                .from(QAllocation.allocation)
+                .where(predicate);
+    }
+}
@@ -2,9 +2,13 @@ package com.niafikra.dimension.plan.repository;
 
 import com.niafikra.dimension.core.util.repository.BaseRepository;
 import com.niafikra.dimension.plan.domain.Budget;
+import org.springframework.data.jpa.repository.Lock;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.persistence.LockModeType;
+import java.util.Optional;
+
 /**
  * @author Boniface Chacha
  * @email boniface.chacha@niafikra.com
@@ -13,6 +17,12 @@ import org.springframework.transaction.annotation.Transactional;
  */
 @Repository
 @Transactional
-public interface BudgetRepository extends BaseRepository<Budget, Long> {
+public interface BudgetRepository extends BaseRepository<Budget, Long>, BudgetRepositoryCustom {
     Budget findByTitle(String title);
+
+    /**
+     * Read the budget locking its row until the transaction completes
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    Optional<Budget> findLockedById(Long id);
 }
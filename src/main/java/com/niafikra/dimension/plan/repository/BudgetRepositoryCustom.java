@@ -0,0 +1,31 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.plan.domain.BudgetOption;
+import com.querydsl.core.types.Predicate;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Bulk queries over budgets
+ */
+public interface BudgetRepositoryCustom {
+
+    /**
+     * @return ids of at most limit budgets which are not archived and ended before the date, in id order
+     */
+    List<Long> findOutdatedIds(LocalDate endedBefore, int limit);
+
+    /**
+     * Mark the budgets archived with a single bulk update
+     *
+     * @return the number of archived budgets
+     */
+    long archive(Collection<Long> budgetIds);
+
+    /**
+     * @return options of the matching budgets ordered by title
+     */
+    List<BudgetOption> findOptions(Predicate predicate);
+}
@@ -0,0 +1,62 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.plan.domain.BudgetOption;
+import com.niafikra.dimension.plan.domain.QBudget;
+import com.querydsl.core.types.Predicate;
+import com.querydsl.core.types.Projections;
+import com.querydsl.jpa.impl.JPAQueryFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+public class BudgetRepositoryImpl implements BudgetRepositoryCustom {
+
+    private static final QBudget budget = QBudget.budget;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<Long> findOutdatedIds(LocalDate endedBefore, int limit) {
+        return new JPAQueryFactory(entityManager)
+                .select(budget.id)
+                .from(budget)
+                .where(budget.archived.isFalse().and(budget.endDate.before(endedBefore)))
+                .orderBy(budget.id.asc())
+                .limit(limit)
+                .fetch();
+    }
+
+    @Override
+    public long archive(Collection<Long> budgetIds) {
+        if (budgetIds.isEmpty()) return 0;
+
+        //bulk updates skip the entity callbacks so the version and update time are set here
+        return new JPAQueryFactory(entityManager)
+                .update(budget)
+                .set(budget.archived, true)
+                .set(budget.version, budget.version.add(1))
+                .set(budget.lastUpdated, LocalDateTime.now())
+                .where(budget.id.in(budgetIds))
+                .execute();
+    }
+
+    @Override
+    public List<BudgetOption> findOptions(Predicate predicate) {
+        return new JPAQueryFactory(entityManager)
+                .select(Projections.constructor(BudgetOption.class,
+                        budget.id,
+                        budget.title,
+                        budget.costCenter.name,
+                        budget.startDate,
+                        budget.endDate))
+                .from(budget)
+                .where(predicate)
+                .orderBy(budget.title.asc())
+                .fetch();
+    }
+}
@@ -14,6 +14,6 @@ import java.util.List;
  * @date 8/31/17 9:12 PM
  */
 @Repository
-public interface CostCenterRepository extends NamedRepository<CostCenter> {
+public interface CostCenterRepository extends NamedRepository<CostCenter>, CostCenterRepositoryCustom {
     List<CostCenter> findCostCentersByPlanners(User user);
 }
\ No newline at end of file
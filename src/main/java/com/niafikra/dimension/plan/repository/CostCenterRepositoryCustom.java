@@ -0,0 +1,18 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.core.security.domain.User;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Id queries over the cost center links used to build the permission matrix
+ */
+public interface CostCenterRepositoryCustom {
+
+    List<Long> findRoleIds(Long costCenterId);
+
+    List<Long> findResourceIds(Long costCenterId);
+
+    Set<User> findPlanners(Long costCenterId);
+}
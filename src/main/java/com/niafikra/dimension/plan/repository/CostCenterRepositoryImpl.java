@@ -0,0 +1,56 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.plan.domain.CostCenter;
+import com.niafikra.dimension.plan.domain.QCostCenter;
+import com.niafikra.dimension.plan.domain.QResource;
+import com.niafikra.dimension.plan.domain.QRole;
+import com.querydsl.jpa.impl.JPAQueryFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+public class CostCenterRepositoryImpl implements CostCenterRepositoryCustom {
+
+    private static final QCostCenter center = QCostCenter.costCenter;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<Long> findRoleIds(Long costCenterId) {
+        QRole role = QRole.role;
+        return new JPAQueryFactory(entityManager)
+                .select(role.id)
+                .from(center)
+                .join(center.roles, role)
+                .where(center.id.eq(costCenterId))
+                .fetch();
+    }
+
+    @Override
+    public List<Long> findResourceIds(Long costCenterId) {
+        QResource resource = QResource.resource;
+        return new JPAQueryFactory(entityManager)
+                .select(resource.id)
+                .from(center)
+                .join(center.resources, resource)
+                .where(center.id.eq(costCenterId))
+                .fetch();
+    }
+
+    @Override
+    public Set<User> findPlanners(Long costCenterId) {
+        CostCenter costCenter = new JPAQueryFactory(entityManager)
+                .selectFrom(center)
+                .leftJoin(center.planners).fetchJoin()
+                .where(center.id.eq(costCenterId))
+                .fetchOne();
+
+        return costCenter != null ? new LinkedHashSet<>(costCenter.getPlanners()) : Collections.emptySet();
+    }
+}
@@ -11,5 +11,5 @@ import org.springframework.stereotype.Repository;
  * @date 10/1/17 2:34 PM
  */
 @Repository
-public interface ExpenseRepository extends BaseRepository<Expense, Long> {
+public interface ExpenseRepository extends BaseRepository<Expense, Long>, ExpenseRepositoryCustom {
 }
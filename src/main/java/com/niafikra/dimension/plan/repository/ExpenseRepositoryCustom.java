@@ -0,0 +1,26 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.domain.Expense;
+import com.querydsl.core.types.Expression;
+import com.querydsl.core.types.Predicate;
+
+import java.util.Map;
+
+/**
+ * Aggregate queries over expenses which are computed by the database
+ */
+public interface ExpenseRepositoryCustom {
+
+    /**
+     * Sum of {@link com.niafikra.dimension.plan.domain.Expense#getActualAmount()} for the matching expenses
+     */
+    Money sumActualAmount(Predicate predicate);
+
+    <K> Map<K, Money> sumActualAmountBy(Predicate predicate, Expression<K> key);
+
+    /**
+     * Expenses ordered by the time their payment was created (newest first) starting after the cursor
+     */
+    KeysetPage<Expense> findPage(Predicate predicate, String cursor, int size, boolean count);
+}
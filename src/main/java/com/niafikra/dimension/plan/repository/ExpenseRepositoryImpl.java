@@ -0,0 +1,71 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.domain.Expense;
+import com.niafikra.dimension.plan.domain.QExpense;
+import com.niafikra.dimension.plan.domain.QRetirementEntry;
+import com.querydsl.core.types.Expression;
+import com.querydsl.core.types.Predicate;
+import com.querydsl.jpa.JPQLQuery;
+import com.querydsl.jpa.impl.JPAQueryFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.Map;
+
+/**
+ * The actual amount of an expense is the paid amount until the expense is reconciled with retirements,
+ * then it becomes the total of the retirement entries.
+ * The two cases are summed by separate queries with complementary conditions
+ */
+public class ExpenseRepositoryImpl implements ExpenseRepositoryCustom {
+
+    private static final QExpense expense = QExpense.expense;
+    private static final QRetirementEntry entry = new QRetirementEntry("entry");
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public Money sumActualAmount(Predicate predicate) {
+        Money paid = MoneyAggregates.sum(paidExpenses(predicate), expense.payment.amount);
+        Money retired = MoneyAggregates.sum(retiredEntries(predicate), entry.amount);
+        return paid.plus(retired);
+    }
+
+    @Override
+    public <K> Map<K, Money> sumActualAmountBy(Predicate predicate, Expression<K> key) {
+        return MoneyAggregates.merge(
+                MoneyAggregates.sumBy(paidExpenses(predicate), key, expense.payment.amount),
+                MoneyAggregates.sumBy(retiredEntries(predicate), key, entry.amount)
+        );
+    }
+
+    @Override
+    public KeysetPage<Expense> findPage(Predicate predicate, String cursor, int size, boolean count) {
+        //expenses have no creation time of their own so they are ordered by their payment
+        return KeysetPage.fetch(
+                new JPAQueryFactory(entityManager).selectFrom(expense).where(predicate),
+                expense.payment.timeCreated,
+                expense.id,
+                row -> new KeysetCursor(row.getPayment().getTimeCreated(), row.getId()),
+                cursor,
+                size,
+                count);
+    }
+
+    private JPQLQuery<?> paidExpenses(Predicate predicate) {
+        return new JPAQueryFactory(entityManager)
+                .from(expense)
+                .where(predicate)
+                .where(expense.reconciled.isFalse().or(expense.retirementEntries.isEmpty()));
+    }
+
+    private JPQLQuery<?> retiredEntries(Predicate predicate) {
+        return new JPAQueryFactory(entityManager)
+                .from(expense)
+                .join(expense.retirementEntries, entry)
+                .where(predicate)
+                .where(expense.reconciled.isTrue());
+    }
+}
@@ -0,0 +1,50 @@
+package com.niafikra.dimension.plan.repository;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+
+/**
+ * Position of the last row of a keyset page, ordered by time then id (both descending).
+ * It is passed to clients as an opaque token
+ */
+@Getter
+@EqualsAndHashCode
+public class KeysetCursor {
+
+    private final LocalDateTime time;
+    private final Long id;
+
+    public KeysetCursor(LocalDateTime time, Long id) {
+        if (time == null || id == null)
+            throw new IllegalArgumentException("Cursor time and id must be specified");
+
+        this.time = time;
+        this.id = id;
+    }
+
+    public String encode() {
+        String value = time + "|" + id;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static KeysetCursor decode(String token) {
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int separator = value.lastIndexOf('|');
+            return new KeysetCursor(
+                    LocalDateTime.parse(value.substring(0, separator)),
+                    Long.parseLong(value.substring(separator + 1)));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid page cursor :" + token, e);
+        }
+    }
+
+    public String toString() {
+        return encode();
+    }
+}
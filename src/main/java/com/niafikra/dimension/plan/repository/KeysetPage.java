@@ -0,0 +1,73 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.querydsl.core.types.dsl.DateTimeExpression;
+import com.querydsl.core.types.dsl.NumberExpression;
+import com.querydsl.jpa.impl.JPAQuery;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A page of rows read by seeking past the cursor of the previous page instead of skipping an offset,
+ * so the cost of a page does not grow with its depth
+ */
+@Getter
+@AllArgsConstructor
+public class KeysetPage<T> {
+
+    private final List<T> content;
+
+    //token of the next page or null when this is the last page
+    private final String nextCursor;
+
+    //total rows matching, only when it was requested
+    private final Long total;
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+
+    /**
+     * @param query    query with the select, from and where clauses applied
+     * @param time     first key of the order, newest first
+     * @param id       second key of the order breaking ties of the time
+     * @param cursorOf cursor of a row
+     * @param cursor   cursor of the previous page or null for the first page
+     * @param count    whether to also count all matching rows
+     */
+    public static <T> KeysetPage<T> fetch(JPAQuery<T> query,
+                                          DateTimeExpression<LocalDateTime> time,
+                                          NumberExpression<Long> id,
+                                          Function<T, KeysetCursor> cursorOf,
+                                          String cursor,
+                                          int size,
+                                          boolean count) {
+        if (size <= 0)
+            throw new IllegalArgumentException("Page size must be greater than zero");
+
+        Long total = count ? query.clone().fetchCount() : null;
+
+        if (cursor != null) {
+            KeysetCursor position = KeysetCursor.decode(cursor);
+            query.where(time.lt(position.getTime())
+                    .or(time.eq(position.getTime()).and(id.lt(position.getId()))));
+        }
+
+        //one extra row tells whether there is a next page
+        List<T> rows = query
+                .orderBy(time.desc(), id.desc())
+                .limit(size + 1)
+                .fetch();
+
+        String nextCursor = null;
+        if (rows.size() > size) {
+            rows = rows.subList(0, size);
+            nextCursor = cursorOf.apply(rows.get(size - 1)).encode();
+        }
+
+        return new KeysetPage<>(rows, nextCursor, total);
+    }
+}
@@ -0,0 +1,81 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.money.QMoney;
+import com.querydsl.core.Tuple;
+import com.querydsl.core.types.Expression;
+import com.querydsl.core.types.FactoryExpression;
+import com.querydsl.core.types.Projections;
+import com.querydsl.core.types.QBean;
+import com.querydsl.jpa.JPQLQuery;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helpers for summing embedded {@link Money} columns in the database instead of loading entities.
+ * <p>
+ * Amounts are summed per currency and the per currency totals are then folded through {@link Money#plus(Money)}
+ * so that conversion rules stay the same as when the entities were summed in memory
+ */
+public final class MoneyAggregates {
+
+    private MoneyAggregates() {
+    }
+
+    /**
+     * @param query query with the from, joins and where clauses already applied
+     * @param money the embedded money path to sum
+     * @return the total or zero when nothing matched
+     */
+    public static Money sum(JPQLQuery<?> query, QMoney money) {
+        List<Money> totals = query
+                .select(total(money))
+                .groupBy(money.currency)
+                .fetch();
+
+        return totals
+                .stream()
+                .reduce(Money.getZERO(), (total, amount) -> total.plus(amount));
+    }
+
+    /**
+     * Sum grouped by the given key, the key can be a single path or a projection of several paths
+     *
+     * @return totals for each key which had matches, keys without matches are absent
+     */
+    public static <K> Map<K, Money> sumBy(JPQLQuery<?> query, Expression<K> key, QMoney money) {
+        QBean<Money> total = total(money);
+        List<Tuple> rows = query
+                .select(key, total)
+                .groupBy(grouping(key))
+                .groupBy(money.currency)
+                .fetch();
+
+        Map<K, Money> totals = new LinkedHashMap<>();
+        rows.forEach(row -> totals.merge(row.get(key), row.get(total), (m1, m2) -> m1.plus(m2)));
+        return totals;
+    }
+
+    /**
+     * Merge grouped totals of the same measure computed by different queries
+     */
+    public static <K> Map<K, Money> merge(Map<K, Money> totals, Map<K, Money> other) {
+        Map<K, Money> merged = new LinkedHashMap<>(totals);
+        other.forEach((key, amount) -> merged.merge(key, amount, (m1, m2) -> m1.plus(m2)));
+        return merged;
+    }
+
+    private static QBean<Money> total(QMoney money) {
+        return Projections.fields(Money.class,
+                money.amount.sum().as("amount"),
+                money.currency.as("currency"));
+    }
+
+    private static Expression<?>[] grouping(Expression<?> key) {
+        if (key instanceof FactoryExpression)
+            return ((FactoryExpression<?>) key).getArgs().toArray(new Expression<?>[0]);
+        else return new Expression<?>[]{key};
+    }
+}
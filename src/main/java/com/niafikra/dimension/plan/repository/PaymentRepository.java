@@ -4,6 +4,8 @@ import com.niafikra.dimension.core.util.repository.BaseRepository;
 import com.niafikra.dimension.plan.domain.Payment;
 import org.springframework.stereotype.Repository;
 
+import java.util.Optional;
+
 /**
  * @author Boniface Chacha
  * @email boniface.chacha@niafikra.com
@@ -12,4 +14,6 @@ import org.springframework.stereotype.Repository;
  */
 @Repository
 public interface PaymentRepository extends BaseRepository<Payment, Long> {
+
+    Optional<Payment> findByIdempotencyKey(String idempotencyKey);
 }
@@ -2,6 +2,12 @@ package com.niafikra.dimension.plan.repository;
 
 import com.niafikra.dimension.core.util.repository.BaseRepository;
 import com.niafikra.dimension.plan.domain.Requisition;
+import org.springframework.data.jpa.repository.EntityGraph;
 
-public interface RequisitionRepository extends BaseRepository<Requisition, Long> {
+import java.util.Optional;
+
+public interface RequisitionRepository extends BaseRepository<Requisition, Long>, RequisitionRepositoryCustom {
+
+    @EntityGraph(Requisition.DETAIL_GRAPH)
+    Optional<Requisition> findDetailById(Long id);
 }
@@ -0,0 +1,64 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.domain.Requisition;
+import com.niafikra.dimension.plan.domain.RequisitionSummary;
+import com.querydsl.core.types.Expression;
+import com.querydsl.core.types.Predicate;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Aggregate queries over requisitions which are computed by the database
+ */
+public interface RequisitionRepositoryCustom {
+
+    Money sumApprovedAmount(Predicate predicate);
+
+    <K> Map<K, Money> sumApprovedAmountBy(Predicate predicate, Expression<K> key);
+
+    /**
+     * Total of the payments made through the expenses of the requisitions
+     */
+    Money sumPaidAmount(Predicate predicate);
+
+    /**
+     * Approved amount which is not yet paid, same as summing {@link com.niafikra.dimension.plan.domain.Requisition#getPendingAmount()}
+     */
+    Money sumPendingAmount(Predicate predicate);
+
+    <K> Map<K, Money> sumPendingAmountBy(Predicate predicate, Expression<K> key);
+
+    /**
+     * @return creator of the first matching requisition or null when none matched, without loading the requisition
+     */
+    User findFirstCreator(Predicate predicate);
+
+    /**
+     * Requisition summaries for list views fetched with a single join query (and a count query for the total)
+     */
+    Page<RequisitionSummary> findSummaries(Predicate predicate, Pageable pageable);
+
+    /**
+     * Requisitions ordered by time created (newest first) starting after the cursor
+     */
+    KeysetPage<Requisition> findPage(Predicate predicate, String cursor, int size, boolean count);
+
+    /**
+     * Lock the requisition row until the transaction completes and reload it, a requisition already loaded in
+     * the persistence context is refreshed so that it is checked against the locked state
+     */
+    Optional<Requisition> findLocked(Long id);
+
+    /**
+     * Lock and reload the requisitions one after the other in id order so concurrent payments can not deadlock,
+     * ids without a requisition are skipped
+     */
+    List<Requisition> findLocked(Collection<Long> ids);
+}
@@ -0,0 +1,163 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.money.QMoney;
+import com.niafikra.dimension.plan.domain.*;
+import com.querydsl.core.types.Expression;
+import com.querydsl.core.types.Predicate;
+import com.querydsl.core.types.Projections;
+import com.querydsl.core.types.QBean;
+import com.querydsl.core.types.dsl.PathBuilderFactory;
+import com.querydsl.jpa.JPQLQuery;
+import com.querydsl.jpa.impl.JPAQueryFactory;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.support.Querydsl;
+
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+
+public class RequisitionRepositoryImpl implements RequisitionRepositoryCustom {
+
+    private static final QRequisition requisition = QRequisition.requisition;
+    private static final QExpense expense = new QExpense("requisitionExpense");
+    private static final QPayment payment = new QPayment("expensePayment");
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public Money sumApprovedAmount(Predicate predicate) {
+        return MoneyAggregates.sum(requisitions(predicate), requisition.approvedAmount);
+    }
+
+    @Override
+    public <K> Map<K, Money> sumApprovedAmountBy(Predicate predicate, Expression<K> key) {
+        return MoneyAggregates.sumBy(requisitions(predicate), key, requisition.approvedAmount);
+    }
+
+    @Override
+    public Money sumPaidAmount(Predicate predicate) {
+        return MoneyAggregates.sum(payments(predicate), payment.amount);
+    }
+
+    @Override
+    public Money sumPendingAmount(Predicate predicate) {
+        return sumApprovedAmount(predicate).minus(sumPaidAmount(predicate));
+    }
+
+    @Override
+    public <K> Map<K, Money> sumPendingAmountBy(Predicate predicate, Expression<K> key) {
+        Map<K, Money> pending = new LinkedHashMap<>(MoneyAggregates.sumBy(requisitions(predicate), key, requisition.approvedAmount));
+        MoneyAggregates.sumBy(payments(predicate), key, payment.amount)
+                .forEach((group, paid) -> pending.merge(group, Money.getZERO().minus(paid), (m1, m2) -> m1.plus(m2)));
+        return pending;
+    }
+
+    @Override
+    public User findFirstCreator(Predicate predicate) {
+        return new JPAQueryFactory(entityManager)
+                .select(requisition.creator)
+                .from(requisition)
+                .where(predicate)
+                .fetchFirst();
+    }
+
+    @Override
+    public Page<RequisitionSummary> findSummaries(Predicate predicate, Pageable pageable) {
+        QBudget budget = QBudget.budget;
+        QRole role = QRole.role;
+        QResource resource = QResource.resource;
+
+        JPQLQuery<RequisitionSummary> query = new JPAQueryFactory(entityManager)
+                .select(Projections.constructor(RequisitionSummary.class,
+                        requisition.id,
+                        requisition.timeCreated,
+                        budget.id,
+                        budget.title,
+                        role.name,
+                        resource.name,
+                        money(requisition.requestedAmount),
+                        money(requisition.approvedAmount),
+                        requisition.approved,
+                        requisition.fulfilled,
+                        requisition.expenses.isNotEmpty(),
+                        requisition.creator))
+                .from(requisition)
+                .join(requisition.budget, budget)
+                .join(requisition.role, role)
+                .join(requisition.resource, resource)
+                .where(predicate);
+
+        if (pageable.getSort().isUnsorted())
+            query.orderBy(requisition.timeCreated.desc(), requisition.id.desc());
+
+        List<RequisitionSummary> content = querydsl().applyPagination(pageable, query).fetch();
+        long total = new JPAQueryFactory(entityManager)
+                .selectFrom(requisition)
+                .where(predicate)
+                .fetchCount();
+
+        return new PageImpl<>(content, pageable, total);
+    }
+
+    @Override
+    public KeysetPage<Requisition> findPage(Predicate predicate, String cursor, int size, boolean count) {
+        return KeysetPage.fetch(
+                new JPAQueryFactory(entityManager).selectFrom(requisition).where(predicate),
+                requisition.timeCreated,
+                requisition.id,
+                row -> new KeysetCursor(row.getTimeCreated(), row.getId()),
+                cursor,
+                size,
+                count);
+    }
+
+    private static QBean<Money> money(QMoney money) {
+        return Projections.fields(Money.class, money.amount, money.date, money.currency);
+    }
+
+    private Querydsl querydsl() {
+        return new Querydsl(entityManager, new PathBuilderFactory().create(Requisition.class));
+    }
+
+    private JPQLQuery<?> requisitions(Predicate predicate) {
+        return new JPAQueryFactory(entityManager)
+                .from(requisition)
+                .where(predicate);
+    }
+
+    private JPQLQuery<?> payments(Predicate predicate) {
+        return new JPAQueryFactory(entityManager)
+                .from(requisition)
+                .join(requisition.expenses, expense)
+                .join(expense.payment, payment)
+                .where(predicate);
+    }
+
+    @Override
+    public Optional<Requisition> findLocked(Long id) {
+        Requisition locked = entityManager.find(Requisition.class, id);
+        if (locked == null) return Optional.empty();
+
+        entityManager.refresh(locked, LockModeType.PESSIMISTIC_WRITE);
+        return Optional.of(locked);
+    }
+
+    @Override
+    public List<Requisition> findLocked(Collection<Long> ids) {
+        List<Requisition> locked = new ArrayList<>();
+        new TreeSet<>(ids).forEach(id -> findLocked(id).ifPresent(locked::add));
+        return locked;
+    }
+}
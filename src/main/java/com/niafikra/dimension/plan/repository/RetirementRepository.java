@@ -5,5 +5,5 @@ import com.niafikra.dimension.plan.domain.Retirement;
 import org.springframework.stereotype.Repository;
 
 @Repository
-public interface RetirementRepository extends BaseRepository<Retirement, Long> {
+public interface RetirementRepository extends BaseRepository<Retirement, Long>, RetirementRepositoryCustom {
 }
@@ -0,0 +1,15 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.plan.domain.Retirement;
+import com.querydsl.core.types.Predicate;
+
+/**
+ * Keyset pagination of retirements
+ */
+public interface RetirementRepositoryCustom {
+
+    /**
+     * Retirements ordered by time created (newest first) starting after the cursor
+     */
+    KeysetPage<Retirement> findPage(Predicate predicate, String cursor, int size, boolean count);
+}
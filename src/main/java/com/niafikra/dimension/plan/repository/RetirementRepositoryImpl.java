@@ -0,0 +1,29 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.plan.domain.QRetirement;
+import com.niafikra.dimension.plan.domain.Retirement;
+import com.querydsl.core.types.Predicate;
+import com.querydsl.jpa.impl.JPAQueryFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+public class RetirementRepositoryImpl implements RetirementRepositoryCustom {
+
+    private static final QRetirement retirement = QRetirement.retirement;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public KeysetPage<Retirement> findPage(Predicate predicate, String cursor, int size, boolean count) {
+        return KeysetPage.fetch(
+                new JPAQueryFactory(entityManager).selectFrom(retirement).where(predicate),
+                retirement.timeCreated,
+                retirement.id,
+                row -> new KeysetCursor(row.getTimeCreated(), row.getId()),
+                cursor,
+                size,
+                count);
+    }
+}
@@ -11,5 +11,5 @@ import org.springframework.stereotype.Repository;
  * @date 8/30/17 10:46 PM
  */
 @Repository("ProjectRoleRepository")
-public interface RoleRepository extends NamedRepository<Role> {
+public interface RoleRepository extends NamedRepository<Role>, RoleRepositoryCustom {
 }
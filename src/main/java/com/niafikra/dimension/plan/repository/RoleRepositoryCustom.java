@@ -0,0 +1,29 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.plan.domain.CostCenter;
+import com.niafikra.dimension.plan.domain.Resource;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bulk queries over the role resource links
+ */
+public interface RoleRepositoryCustom {
+
+    /**
+     * @return resources of each role which are also allowed on the cost center, keyed by the role id.
+     * Roles without such resources are absent
+     */
+    Map<Long, Set<Resource>> findResources(Collection<Long> roleIds, CostCenter costCenter);
+
+    List<Long> findResourceIds(Long roleId);
+
+    /**
+     * @return ids of the roles the user is a member of, without loading the roles
+     */
+    List<Long> findRoleIds(User user);
+}
@@ -0,0 +1,77 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.plan.domain.CostCenter;
+import com.niafikra.dimension.plan.domain.QCostCenter;
+import com.niafikra.dimension.plan.domain.QResource;
+import com.niafikra.dimension.plan.domain.QRole;
+import com.niafikra.dimension.plan.domain.Resource;
+import com.querydsl.core.Tuple;
+import com.querydsl.jpa.JPAExpressions;
+import com.querydsl.jpa.impl.JPAQueryFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class RoleRepositoryImpl implements RoleRepositoryCustom {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public Map<Long, Set<Resource>> findResources(Collection<Long> roleIds, CostCenter costCenter) {
+        if (roleIds.isEmpty()) return Collections.emptyMap();
+
+        QRole role = QRole.role;
+        QResource resource = new QResource("roleResource");
+        QCostCenter center = QCostCenter.costCenter;
+        QResource centerResource = new QResource("centerResource");
+
+        List<Tuple> links = new JPAQueryFactory(entityManager)
+                .select(role.id, resource)
+                .from(role)
+                .join(role.resources, resource)
+                .where(role.id.in(roleIds)
+                        .and(resource.in(JPAExpressions
+                                .select(centerResource)
+                                .from(center)
+                                .join(center.resources, centerResource)
+                                .where(center.eq(costCenter)))))
+                .fetch();
+
+        Map<Long, Set<Resource>> resources = new LinkedHashMap<>();
+        links.forEach(link -> resources
+                .computeIfAbsent(link.get(role.id), id -> new LinkedHashSet<>())
+                .add(link.get(resource)));
+        return resources;
+    }
+
+    @Override
+    public List<Long> findResourceIds(Long roleId) {
+        QRole role = QRole.role;
+        QResource resource = QResource.resource;
+        return new JPAQueryFactory(entityManager)
+                .select(resource.id)
+                .from(role)
+                .join(role.resources, resource)
+                .where(role.id.eq(roleId))
+                .fetch();
+    }
+
+    @Override
+    public List<Long> findRoleIds(User user) {
+        QRole role = QRole.role;
+        return new JPAQueryFactory(entityManager)
+                .select(role.id)
+                .from(role)
+                .where(role.users.contains(user))
+                .fetch();
+    }
+}
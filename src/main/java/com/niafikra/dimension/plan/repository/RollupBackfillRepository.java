@@ -0,0 +1,9 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.core.util.repository.BaseRepository;
+import com.niafikra.dimension.plan.domain.RollupBackfill;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface RollupBackfillRepository extends BaseRepository<RollupBackfill, Long> {
+}
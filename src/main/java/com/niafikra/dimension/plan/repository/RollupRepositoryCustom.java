@@ -0,0 +1,22 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.domain.Rollup;
+import com.querydsl.core.types.Predicate;
+
+import java.time.LocalDate;
+
+/**
+ * Aggregate and bulk queries over the rollup buckets
+ */
+public interface RollupRepositoryCustom {
+
+    Money sumAmount(Predicate predicate);
+
+    /**
+     * Delete the day and month buckets of the metric starting within the dates (both inclusive)
+     *
+     * @return number of deleted buckets
+     */
+    long deleteBuckets(Rollup.Metric metric, LocalDate start, LocalDate end);
+}
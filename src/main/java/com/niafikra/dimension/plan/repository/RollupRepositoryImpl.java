@@ -0,0 +1,32 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.domain.QRollup;
+import com.niafikra.dimension.plan.domain.Rollup;
+import com.querydsl.core.types.Predicate;
+import com.querydsl.jpa.impl.JPAQueryFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.time.LocalDate;
+
+public class RollupRepositoryImpl implements RollupRepositoryCustom {
+
+    private static final QRollup rollup = QRollup.rollup;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public Money sumAmount(Predicate predicate) {
+        return MoneyAggregates.sum(new JPAQueryFactory(entityManager).from(rollup).where(predicate), rollup.amount);
+    }
+
+    @Override
+    public long deleteBuckets(Rollup.Metric metric, LocalDate start, LocalDate end) {
+        return new JPAQueryFactory(entityManager)
+                .delete(rollup)
+                .where(rollup.metric.eq(metric).and(rollup.bucketStart.between(start, end)))
+                .execute();
+    }
+}
@@ -0,0 +1,255 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.core.util.HasLogger;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.domain.*;
+import com.niafikra.dimension.plan.event.BudgetChangeEvent;
+import com.niafikra.dimension.plan.repository.AllocationBalanceRepository;
+import com.niafikra.dimension.plan.repository.AllocationRepository;
+import com.niafikra.dimension.plan.repository.ExpenseRepository;
+import com.niafikra.dimension.plan.repository.RequisitionRepository;
+import com.querydsl.core.BooleanBuilder;
+import com.querydsl.core.types.Expression;
+import com.querydsl.core.types.Predicate;
+import com.querydsl.core.types.Projections;
+import com.querydsl.core.types.dsl.NumberPath;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Maintains the {@link AllocationBalance} ledger of each budget line
+ * <p>
+ * The write paths of allocations, expenses and requisitions report their changes here in the same transaction,
+ * always after the source rows are saved. A change locks the ledger row of its budget line so concurrent changes
+ * of the line are applied one after the other. When a budget line has no ledger row yet it is first calculated
+ * from the committed source rows in its own transaction, so the ledger never needs a separate initialisation.
+ * Every change is published as a {@link BudgetChangeEvent}
+ */
+@Service
+@Transactional(propagation = Propagation.SUPPORTS, readOnly = true)
+public class AllocationBalanceService implements HasLogger {
+
+    private AllocationBalanceRepository balanceRepository;
+    private AllocationRepository allocationRepository;
+    private ExpenseRepository expenseRepository;
+    private RequisitionRepository requisitionRepository;
+    private ApplicationEventPublisher publisher;
+    private TransactionTemplate newTransaction;
+
+    public AllocationBalanceService(AllocationBalanceRepository balanceRepository,
+                                    AllocationRepository allocationRepository,
+                                    ExpenseRepository expenseRepository,
+                                    RequisitionRepository requisitionRepository,
+                                    ApplicationEventPublisher publisher,
+                                    PlatformTransactionManager transactionManager) {
+        this.balanceRepository = balanceRepository;
+        this.allocationRepository = allocationRepository;
+        this.expenseRepository = expenseRepository;
+        this.requisitionRepository = requisitionRepository;
+        this.publisher = publisher;
+        this.newTransaction = new TransactionTemplate(transactionManager);
+        this.newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    public AllocationBalance getBalance(Budget budget, Role role, Resource resource) {
+        AllocationBalance.Key key = new AllocationBalance.Key(budget, role, resource);
+        return balanceRepository.findById(key).orElseGet(() -> calculate(key));
+    }
+
+    @Transactional
+    public void addProposed(Budget budget, Role role, Resource resource, Money amount) {
+        addAllocation(budget, role, resource, amount, Money.getZERO());
+    }
+
+    @Transactional
+    public void addAllocated(Budget budget, Role role, Resource resource, Money amount) {
+        addAllocation(budget, role, resource, Money.getZERO(), amount);
+    }
+
+    /**
+     * Each change must be reported once, so changes touching both amounts are reported together
+     */
+    @Transactional
+    public void addAllocation(Budget budget, Role role, Resource resource, Money proposed, Money allocated) {
+        if (proposed.isZero() && allocated.isZero()) return;
+        apply(budget, role, resource, balance -> {
+            balance.setProposed(balance.getProposed().plus(proposed));
+            balance.setAllocated(balance.getAllocated().plus(allocated));
+        });
+    }
+
+    @Transactional
+    public void addExpended(Budget budget, Role role, Resource resource, Money amount) {
+        if (amount.isZero()) return;
+        apply(budget, role, resource, balance -> balance.setExpended(balance.getExpended().plus(amount)));
+    }
+
+    @Transactional
+    public void addPendingPayment(Budget budget, Role role, Resource resource, Money amount) {
+        if (amount.isZero()) return;
+        apply(budget, role, resource, balance -> balance.setPendingPayment(balance.getPendingPayment().plus(amount)));
+    }
+
+    /**
+     * Recalculate the requisition totals of the budget line, used when a requisition changes its approval state
+     * since the previous amounts are not known by the caller
+     */
+    @Transactional
+    public void refreshRequisitions(Budget budget, Role role, Resource resource) {
+        AllocationBalance.Key key = new AllocationBalance.Key(budget, role, resource);
+        apply(key, balance -> {
+            balance.setPendingPayment(calculatePendingPayment(key));
+            balance.setPendingApproval(calculatePendingApproval(key));
+        });
+    }
+
+    /**
+     * Regenerate the ledger rows from the source rows
+     *
+     * @param budget the budget to rebuild or null to rebuild the whole ledger
+     * @return the number of ledger rows written
+     */
+    @Transactional
+    public int rebuild(Budget budget) {
+        Long budgetId = budget != null ? budget.getId() : null;
+
+        QAllocationBalance allocationBalance = QAllocationBalance.allocationBalance;
+        balanceRepository.deleteAll(balanceRepository.findAll(
+                budgetId != null ? allocationBalance.id.budgetId.eq(budgetId) : new BooleanBuilder()));
+
+        QAllocation allocation = QAllocation.allocation;
+        QExpense expense = QExpense.expense;
+        BooleanBuilder allocationQuery = new BooleanBuilder();
+        BooleanBuilder expenseQuery = new BooleanBuilder();
+        if (budgetId != null) {
+            allocationQuery.and(allocation.budget.id.eq(budgetId));
+            expenseQuery.and(expense.budget.id.eq(budgetId));
+        }
+
+        Map<AllocationBalance.Key, AllocationBalance> balances = new LinkedHashMap<>();
+        collect(balances,
+                allocationRepository.sumProposedAmountBy(allocationQuery, key(allocation.budget.id, allocation.role.id, allocation.resource.id)),
+                AllocationBalance::setProposed);
+        collect(balances,
+                allocationRepository.sumAllocatedAmountBy(allocationQuery, key(allocation.budget.id, allocation.role.id, allocation.resource.id)),
+                AllocationBalance::setAllocated);
+        collect(balances,
+                expenseRepository.sumActualAmountBy(expenseQuery, key(expense.budget.id, expense.role.id, expense.resource.id)),
+                AllocationBalance::setExpended);
+        collect(balances,
+                sumRequisitions(budgetId, QRequisition.requisition.approved.isTrue().and(QRequisition.requisition.fulfilled.isFalse())),
+                AllocationBalance::setPendingPayment);
+        collect(balances,
+                sumRequisitions(budgetId, QRequisition.requisition.approved.isNull()),
+                AllocationBalance::setPendingApproval);
+
+        balanceRepository.saveAll(balances.values());
+        publisher.publishEvent(new BudgetChangeEvent(budgetId));
+        getLogger().info("Rebuilt {} allocation balances for {}", balances.size(), budget != null ? budget : "all budgets");
+        return balances.size();
+    }
+
+    private void apply(Budget budget, Role role, Resource resource, Consumer<AllocationBalance> change) {
+        apply(new AllocationBalance.Key(budget, role, resource), change);
+    }
+
+    private void apply(AllocationBalance.Key key, Consumer<AllocationBalance> change) {
+        AllocationBalance balance = balanceRepository.findLocked(key).orElseGet(() -> {
+            create(key);
+            return balanceRepository.findLocked(key)
+                    .orElseThrow(() -> new IllegalStateException("Allocation balance " + key + " was not created"));
+        });
+        change.accept(balance);
+        balanceRepository.save(balance);
+        publisher.publishEvent(new BudgetChangeEvent(key.getBudgetId()));
+    }
+
+    /**
+     * Insert the ledger row calculated from the committed source rows, the change of the current transaction is
+     * applied on it afterwards. If a concurrent change inserted the row first that row is kept
+     */
+    private void create(AllocationBalance.Key key) {
+        try {
+            newTransaction.execute(status -> {
+                if (!balanceRepository.existsById(key))
+                    balanceRepository.save(calculate(key));
+                return null;
+            });
+        } catch (DataIntegrityViolationException e) {
+            getLogger().debug("Allocation balance {} was created by a concurrent change", key);
+        }
+    }
+
+    private AllocationBalance calculate(AllocationBalance.Key key) {
+        QAllocation allocation = QAllocation.allocation;
+        BooleanBuilder allocationQuery = new BooleanBuilder()
+                .and(allocation.budget.id.eq(key.getBudgetId()))
+                .and(allocation.role.id.eq(key.getRoleId()))
+                .and(allocation.resource.id.eq(key.getResourceId()));
+
+        QExpense expense = QExpense.expense;
+        BooleanBuilder expenseQuery = new BooleanBuilder()
+                .and(expense.budget.id.eq(key.getBudgetId()))
+                .and(expense.role.id.eq(key.getRoleId()))
+                .and(expense.resource.id.eq(key.getResourceId()));
+
+        AllocationBalance balance = new AllocationBalance(key);
+        balance.setProposed(allocationRepository.sumProposedAmount(allocationQuery));
+        balance.setAllocated(allocationRepository.sumAllocatedAmount(allocationQuery));
+        balance.setExpended(expenseRepository.sumActualAmount(expenseQuery));
+        balance.setPendingPayment(calculatePendingPayment(key));
+        balance.setPendingApproval(calculatePendingApproval(key));
+        return balance;
+    }
+
+    private Money calculatePendingPayment(AllocationBalance.Key key) {
+        QRequisition requisition = QRequisition.requisition;
+        return sumRequisitions(key, requisition.approved.isTrue().and(requisition.fulfilled.isFalse()));
+    }
+
+    private Money calculatePendingApproval(AllocationBalance.Key key) {
+        return sumRequisitions(key, QRequisition.requisition.approved.isNull());
+    }
+
+    private Money sumRequisitions(AllocationBalance.Key key, Predicate state) {
+        QRequisition requisition = QRequisition.requisition;
+        BooleanBuilder query = new BooleanBuilder(state)
+                .and(requisition.budget.id.eq(key.getBudgetId()))
+                .and(requisition.role.id.eq(key.getRoleId()))
+                .and(requisition.resource.id.eq(key.getResourceId()));
+
+        return requisitionRepository.sumPendingAmount(query);
+    }
+
+    private Map<AllocationBalance.Key, Money> sumRequisitions(Long budgetId, Predicate state) {
+        QRequisition requisition = QRequisition.requisition;
+        BooleanBuilder query = new BooleanBuilder(state);
+        if (budgetId != null)
+            query.and(requisition.budget.id.eq(budgetId));
+
+        return requisitionRepository.sumPendingAmountBy(query, key(requisition.budget.id, requisition.role.id, requisition.resource.id));
+    }
+
+    private static void collect(Map<AllocationBalance.Key, AllocationBalance> balances,
+                                Map<AllocationBalance.Key, Money> totals,
+                                BiConsumer<AllocationBalance, Money> setter) {
+        totals.forEach((key, amount) -> setter.accept(balances.computeIfAbsent(key, AllocationBalance::new), amount));
+    }
+
+    private static Expression<AllocationBalance.Key> key(NumberPath<Long> budgetId,
+                                                         NumberPath<Long> roleId,
+                                                         NumberPath<Long> resourceId) {
+        return Projections.constructor(AllocationBalance.Key.class, budgetId, roleId, resourceId);
+    }
+}
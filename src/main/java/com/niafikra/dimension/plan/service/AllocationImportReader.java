@@ -0,0 +1,222 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.plan.domain.AllocationImportRow;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.poifs.filesystem.FileMagic;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.ss.util.NumberToTextConverter;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.util.function.Consumer;
+
+/**
+ * Reads allocation lines from the allocations import template one row at a time.
+ * <p>
+ * XLSX files are parsed with the POI event (SAX) model so the workbook is never held in memory,
+ * XLS files still use the user model since the format is limited to 65536 rows
+ */
+public final class AllocationImportReader {
+
+    public static final int TOTAL_ROW = 0;
+    public static final int HEADERS_ROW = 1;
+    public static final int ALLOCATIONS_START_ROW = 2;
+
+    public static final int ROLE_ID_COLUMN = 0;
+    public static final int RESOURCE_ID_COLUMN = 1;
+    public static final int ROLE_COLUMN = 2;
+    public static final int RESOURCE_COLUMN = 3;
+    public static final int PROPOSED_AMOUNT_COLUMN = 4;
+    public static final int DESCRIPTION_COLUMN = 5;
+    public static final int REASON_COLUMN = 6;
+
+    private AllocationImportReader() {
+    }
+
+    /**
+     * @param rowConsumer receives every allocation row, rows which can not be parsed are passed with null values
+     *                    so that the consumer can report them
+     */
+    public static void read(InputStream importStream, Consumer<AllocationImportRow> rowConsumer) throws IOException {
+        InputStream stream = FileMagic.prepareToCheckMagic(importStream);
+        if (FileMagic.valueOf(stream) == FileMagic.OOXML) readXlsx(stream, rowConsumer);
+        else readXls(stream, rowConsumer);
+    }
+
+    private static void readXls(InputStream stream, Consumer<AllocationImportRow> rowConsumer) throws IOException {
+        DataFormatter formatter = new DataFormatter();
+        try (HSSFWorkbook workbook = new HSSFWorkbook(stream)) {
+            Sheet sheet = workbook.getSheetAt(0);
+            for (Row row : sheet) {
+                if (row.getRowNum() < ALLOCATIONS_START_ROW) continue;
+
+                RowValues values = new RowValues(row.getRowNum());
+                for (Cell cell : row) {
+                    values.set(cell.getColumnIndex(), rawValue(cell, formatter));
+                }
+                values.publish(rowConsumer);
+            }
+        }
+    }
+
+    /**
+     * The stored value of the cell rather than what its format displays, formulas give their cached result
+     */
+    private static String rawValue(Cell cell, DataFormatter formatter) {
+        CellType type = cell.getCellTypeEnum();
+        if (type == CellType.FORMULA) type = cell.getCachedFormulaResultTypeEnum();
+
+        switch (type) {
+            case NUMERIC:
+                return NumberToTextConverter.toText(cell.getNumericCellValue());
+            case STRING:
+                return cell.getRichStringCellValue().getString();
+            case BLANK:
+                return "";
+            default:
+                return formatter.formatCellValue(cell);
+        }
+    }
+
+    private static void readXlsx(InputStream stream, Consumer<AllocationImportRow> rowConsumer) throws IOException {
+        try (OPCPackage pkg = OPCPackage.open(stream)) {
+            XSSFReader reader = new XSSFReader(pkg);
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+
+            XMLReader parser = SAXHelper.newXMLReader();
+            parser.setContentHandler(new XSSFSheetXMLHandler(
+                    reader.getStylesTable(),
+                    null,
+                    strings,
+                    new RowHandler(rowConsumer),
+                    new RawValueFormatter(),
+                    false));
+
+            try (InputStream sheet = reader.getSheetsData().next()) {
+                parser.parse(new InputSource(sheet));
+            }
+        } catch (OpenXML4JException | SAXException | ParserConfigurationException e) {
+            throw new IOException("Failed to read the allocations import file", e);
+        }
+    }
+
+    /**
+     * Numbers are passed as stored instead of as displayed by their format, so that thousands separators,
+     * rounding, scientific notation or currency symbols of the cell format do not change the amounts
+     */
+    private static class RawValueFormatter extends DataFormatter {
+        @Override
+        public String formatRawCellContents(double value, int formatIndex, String formatString) {
+            return NumberToTextConverter.toText(value);
+        }
+    }
+
+    private static class RowHandler implements XSSFSheetXMLHandler.SheetContentsHandler {
+        private final Consumer<AllocationImportRow> rowConsumer;
+        private RowValues values;
+
+        RowHandler(Consumer<AllocationImportRow> rowConsumer) {
+            this.rowConsumer = rowConsumer;
+        }
+
+        @Override
+        public void startRow(int rowNum) {
+            values = rowNum < ALLOCATIONS_START_ROW ? null : new RowValues(rowNum);
+        }
+
+        @Override
+        public void endRow(int rowNum) {
+            if (values != null) values.publish(rowConsumer);
+            values = null;
+        }
+
+        @Override
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            if (values != null)
+                values.set(new CellReference(cellReference).getCol(), formattedValue);
+        }
+
+        public void headerFooter(String text, boolean isHeader, String tagName) {
+        }
+    }
+
+    private static class RowValues {
+        private final int rowNum;
+        private String roleId;
+        private String resourceId;
+        private String proposedAmount;
+        private String description = "";
+        private String reason = "";
+
+        RowValues(int rowNum) {
+            this.rowNum = rowNum;
+        }
+
+        void set(int column, String value) {
+            switch (column) {
+                case ROLE_ID_COLUMN:
+                    roleId = value;
+                    break;
+                case RESOURCE_ID_COLUMN:
+                    resourceId = value;
+                    break;
+                case PROPOSED_AMOUNT_COLUMN:
+                    proposedAmount = value;
+                    break;
+                case DESCRIPTION_COLUMN:
+                    description = StringUtils.defaultString(value);
+                    break;
+                case REASON_COLUMN:
+                    reason = StringUtils.defaultString(value);
+                    break;
+                default:
+            }
+        }
+
+        void publish(Consumer<AllocationImportRow> rowConsumer) {
+            //skip trailing empty rows
+            if (StringUtils.isAllBlank(roleId, resourceId, proposedAmount)) return;
+
+            rowConsumer.accept(new AllocationImportRow(
+                    rowNum + 1,
+                    toId(roleId),
+                    toId(resourceId),
+                    toAmount(proposedAmount),
+                    description,
+                    reason));
+        }
+
+        private static Long toId(String value) {
+            if (StringUtils.isBlank(value)) return null;
+            BigDecimal id = toAmount(value);
+            return id != null ? id.longValue() : null;
+        }
+
+        private static BigDecimal toAmount(String value) {
+            if (StringUtils.isBlank(value)) return BigDecimal.ZERO;
+            try {
+                return new BigDecimal(value.trim().replace(",", ""));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
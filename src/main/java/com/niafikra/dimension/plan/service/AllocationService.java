@@ -1,22 +1,20 @@
 package com.niafikra.dimension.plan.service;
 
+import com.google.common.collect.Lists;
 import com.niafikra.dimension.approval.domain.Tracker;
 import com.niafikra.dimension.approval.service.ApprovalTrackerService;
 import com.niafikra.dimension.core.security.SecurityUtils;
 import com.niafikra.dimension.core.security.domain.User;
 import com.niafikra.dimension.core.security.service.UserService;
 import com.niafikra.dimension.core.util.DateUtils;
+import com.niafikra.dimension.core.util.HasLogger;
 import com.niafikra.dimension.group.service.GroupService;
 import com.niafikra.dimension.money.Money;
 import com.niafikra.dimension.plan.domain.*;
 import com.niafikra.dimension.plan.repository.AllocationRepository;
 import com.querydsl.core.BooleanBuilder;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.commons.lang3.tuple.Pair;
 import org.hibernate.Hibernate;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Lazy;
@@ -27,11 +25,11 @@ import org.springframework.transaction.annotation.Transactional;
 import javax.validation.constraints.NotNull;
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigDecimal;
 import java.time.LocalDate;
 import java.time.temporal.TemporalAdjusters;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author Boniface Chacha
@@ -41,7 +39,7 @@ import java.util.stream.Collectors;
  */
 @Service
 @Transactional(propagation = Propagation.SUPPORTS, readOnly = true)
-public class AllocationService {
+public class AllocationService implements HasLogger {
 
     private AllocationRepository allocationRepository;
     private UserService userService;
@@ -51,10 +49,15 @@ public class AllocationService {
     private CostCenterService costCenterService;
     private GroupService groupService;
     private BudgetService budgetService;
+    private AllocationBalanceService balanceService;
+    private BudgetLocks budgetLocks;
 
     @Value("${dimension.budget.auto-increase-fund-during-adjustment}")
     private boolean autoIncreaseFundDuringAdjustment;
 
+    @Value("${dimension.allocation.import-batch-size:500}")
+    private int importBatchSize;
+
     public AllocationService(AllocationRepository allocationRepository,
                              UserService userService,
                              ApprovalTrackerService trackerService,
@@ -62,7 +65,9 @@ public class AllocationService {
                              RoleService roleService,
                              @Lazy BudgetService budgetService,
                              CostCenterService costCenterService,
-                             GroupService groupService) {
+                             GroupService groupService,
+                             AllocationBalanceService balanceService,
+                             BudgetLocks budgetLocks) {
         this.allocationRepository = allocationRepository;
         this.userService = userService;
         this.trackerService = trackerService;
@@ -71,6 +76,8 @@ public class AllocationService {
         this.roleService = roleService;
         this.costCenterService = costCenterService;
         this.groupService = groupService;
+        this.balanceService = balanceService;
+        this.budgetLocks = budgetLocks;
     }
 
 
@@ -140,10 +147,18 @@ public class AllocationService {
     }
 
     public Money calculateTotalProposed(Budget budget, Role role, Resource resource) {
-        return getAllocations(budget, role, resource)
-                .stream()
-                .map(allocation -> allocation.getProposedAmount())
-                .reduce(Money.getZERO(), (total, proposed) -> total.plus(proposed));
+        return calculateTotalProposed(null, budget, role, resource, null, null);
+    }
+
+    public Money calculateTotalProposed(
+            CostCenter costCenter,
+            Budget budget,
+            Role role,
+            Resource resource,
+            LocalDate startDate,
+            LocalDate endDate) {
+        BooleanBuilder query = createPredicate(costCenter, budget, role, resource, startDate, endDate);
+        return allocationRepository.sumProposedAmount(query);
     }
 
     public Money calculateTotalAllocated(
@@ -153,10 +168,8 @@ public class AllocationService {
             Resource resource,
             LocalDate startDate,
             LocalDate endDate) {
-        return getAllocations(costCenter, budget, role, resource, startDate, endDate)
-                .stream()
-                .map(allocation -> allocation.getAllocatedAmount())
-                .reduce(Money.getZERO(), (total, allocated) -> total.plus(allocated));
+        BooleanBuilder query = createPredicate(costCenter, budget, role, resource, startDate, endDate);
+        return allocationRepository.sumAllocatedAmount(query);
     }
 
 
@@ -165,9 +178,22 @@ public class AllocationService {
     }
 
     public Money calculateTotalRolesAllocated(Budget budget, User user, Resource resource) {
-        return roleService.findRoles(user).stream()
-                .map(role -> calculateTotalAllocated(budget, role, resource))
-                .reduce(Money.getZERO(), (total, allocated) -> total.plus(allocated));
+        return calculateTotalRolesAllocated(budget, roleService.findRoleIds(user), resource, null, null).getTotal();
+    }
+
+    /**
+     * Allocated totals of each of the roles computed by a single grouped query
+     */
+    public RoleTotals calculateTotalRolesAllocated(Budget budget,
+                                                   Collection<Long> roleIds,
+                                                   Resource resource,
+                                                   LocalDate startDate,
+                                                   LocalDate endDate) {
+        if (roleIds.isEmpty()) return RoleTotals.zero(roleIds);
+
+        BooleanBuilder query = createPredicate(null, budget, null, resource, startDate, endDate)
+                .and(QAllocation.allocation.role.id.in(roleIds));
+        return RoleTotals.of(roleIds, allocationRepository.sumAllocatedAmountBy(query, QAllocation.allocation.role.id));
     }
 
     public Money calculateTotalAllocated(Role role, LocalDate start, LocalDate end) {
@@ -179,10 +205,7 @@ public class AllocationService {
     }
 
     public Money calculateTotalAllocated(User currentUser, LocalDate start, LocalDate end) {
-        return roleService.findRoles(currentUser)
-                .stream()
-                .map(role -> calculateTotalAllocated(role, start, end))
-                .reduce(Money.getZERO(), (totalAllocated, allocated) -> totalAllocated.plus(allocated));
+        return calculateTotalRolesAllocated(null, roleService.findRoleIds(currentUser), null, start, end).getTotal();
     }
 
     public Money calculateTotalMonthlyAllocated(CostCenter costCenter) {
@@ -252,6 +275,9 @@ public class AllocationService {
 
     @Transactional
     public Allocation propose(Budget budget, Role role, Resource resource, Money proposedAmount, String description, String allocationChangeReason) {
+        //concurrent proposals on the budget wait here so the funds check below sees every other proposal
+        budget = budgetLocks.lock(budget);
+
         if (budget.isApproved())
             throw new IllegalArgumentException("Budget must not be approved yet to allocate new resource");
 
@@ -279,11 +305,13 @@ public class AllocationService {
         //check if there is amount change before changing it in the allocation
         //if there no change in the amount currently proposed then do not record amount change
         boolean amountChanged = !allocation.getProposedAmount().equals(proposedAmount);
+        Money previousAmount = allocation.getProposedAmount();
 
         allocation.setProposedAmount(proposedAmount);
         allocation.setDescription(description);
 
         allocation = allocationRepository.save(allocation);
+        balanceService.addProposed(budget, role, resource, proposedAmount.minus(previousAmount));
 
         //ensure proposed amount does not exceed allocated funds
         Money allocated = calculateTotalProposed(budget, null, null);
@@ -339,6 +367,7 @@ public class AllocationService {
         }
 
         allocation = allocationRepository.save(allocation);
+        balanceService.addAllocated(budget, role, resource, amount);
 
         //ensure proposed amount does not exceed allocated funds
         Money allocated = calculateTotalAllocated(budget, null, null);
@@ -426,6 +455,11 @@ public class AllocationService {
         ensureUserCanPropose(budget, role, user);
 
         allocationRepository.delete(allocation);
+        balanceService.addAllocation(budget,
+                role,
+                allocation.getResource(),
+                Money.getZERO().minus(allocation.getProposedAmount()),
+                Money.getZERO().minus(allocation.getAllocatedAmount()));
     }
 
 
@@ -434,21 +468,28 @@ public class AllocationService {
         allocations.forEach(allocation -> delete(allocation));
     }
 
+    /**
+     * Allocate the proposed amounts of the approved budget with a single bulk update, the fund ceiling is checked
+     * once against the total proposed before anything is written and the budget ledger is rebuilt afterwards
+     */
     @Transactional
     public void allocate(Budget budget) {
         if (!budget.isApproved())
             throw new IllegalArgumentException("You can not allocate resources on a not approved budget");
 
-        List<Allocation> allocations = getAllocations(budget, null, null);
-        allocations.forEach(allocation -> {
-            allocation.setAllocatedAmount(allocation.getProposedAmount());
-            allocationRepository.save(allocation);
-        });
+        long start = System.currentTimeMillis();
 
-        //ensure allocated amount does not exceed allocated funds
-        Money allocated = calculateTotalAllocated(budget, null, null);
+        //ensure allocated amount does not exceed allocated funds, proposed amounts become the allocated amounts
+        Money allocated = calculateTotalProposed(budget, null, null);
         if (allocated.isGreaterThan(budget.getFund()))
             throw new IllegalStateException("Total allocations are greater than allocated funds for the budget");
+
+        long updated = allocationRepository.copyProposedToAllocated(budget.getId());
+        long copied = System.currentTimeMillis();
+
+        balanceService.rebuild(budget);
+        getLogger().info("Allocated {} allocations of {} in {} ms (bulk update {} ms, ledger rebuild {} ms)",
+                updated, budget, System.currentTimeMillis() - start, copied - start, System.currentTimeMillis() - copied);
     }
 
     public Allocation getAllocation(Long allocationId) {
@@ -458,73 +499,217 @@ public class AllocationService {
 
     @Transactional
     public void importAllocations(Budget budget, InputStream importStream) throws IOException {
+        AllocationImportReport report = processAllocationImport(budget, importStream);
+        if (report.hasErrors())
+            throw new IllegalArgumentException(report.toString());
+    }
+
+    /**
+     * Import proposed allocations from the allocations spreadsheet (xls or xlsx).
+     * <p>
+     * All rows are validated before anything is written, if any row is invalid or the total proposed would exceed
+     * the budget funds the allocations are left untouched and the errors are returned in the report.
+     * Rows with zero amount delete the existing allocation
+     */
+    @Transactional
+    public AllocationImportReport processAllocationImport(Budget budget, InputStream importStream) throws IOException {
+        budget = budgetLocks.lock(budget);
+
+        if (budget.isApproved())
+            throw new IllegalArgumentException("Budget must not be approved yet to allocate new resource");
+
+        if (budget.isArchived())
+            throw new IllegalArgumentException("You can not propose on a locked budget");
 
-        Workbook workbook = new HSSFWorkbook(importStream);
+        List<AllocationImportRow> rows = new ArrayList<>();
+        AllocationImportReader.read(importStream, rows::add);
 
-        Sheet sheet = workbook.getSheetAt(0);
-        Iterator<Row> rowIterator = sheet.rowIterator();
+        AllocationImportReport report = new AllocationImportReport();
+        report.setRowCount(rows.size());
 
-        //pass info headers
-        rowIterator.next();
-        rowIterator.next();
+        Map<Long, Role> roles = roleService
+                .getRoles(rows.stream().map(AllocationImportRow::getRoleId).filter(Objects::nonNull).collect(Collectors.toSet()))
+                .stream()
+                .collect(Collectors.toMap(Role::getId, role -> role));
 
-        while (rowIterator.hasNext()) {
-            Row row = rowIterator.next();
-            Long roleId = new Double(row.getCell(0).getNumericCellValue()).longValue();
-            Role role = roleService.getRole(roleId);
-            Long resourceId = new Double(row.getCell(1).getNumericCellValue()).longValue();
-            Resource resource = resourceService.getResource(resourceId);
-            BigDecimal proposedValue = new BigDecimal(row.getCell(4).getNumericCellValue());
-            Money proposedAmount = new Money(proposedValue);
+        Map<Long, Resource> resources = resourceService
+                .getResources(rows.stream().map(AllocationImportRow::getResourceId).filter(Objects::nonNull).collect(Collectors.toSet()))
+                .stream()
+                .collect(Collectors.toMap(Resource::getId, resource -> resource));
 
-            Cell descriptionCell = row.getCell(5);
-            String description = descriptionCell != null ? descriptionCell.getStringCellValue() : "";
+        Map<Pair<Long, Long>, Allocation> allocations = getAllocationsByLine(budget);
 
-            Cell reasonCell = row.getCell(6);
-            String reason = reasonCell != null ? reasonCell.getStringCellValue() : "";
+        Set<Role> costCenterRoles = costCenterService.getRoles(budget.getCostCenter());
+        Set<Resource> costCenterResources = costCenterService.getResources(budget.getCostCenter());
 
-            if (proposedAmount.isZero()) {
-                deleteAllocations(budget, role, resource);
-            } else {
-                propose(budget,
-                        role,
-                        resource,
-                        proposedAmount,
-                        description,
-                        reason
-                );
+        User creator = SecurityUtils.getCurrentUser(userService);
+        Map<Role, Optional<String>> proposeErrors = new HashMap<>();
+        Map<Pair<Long, Long>, AllocationImportRow> validRows = new LinkedHashMap<>();
+
+        for (AllocationImportRow row : rows) {
+            Role role = roles.get(row.getRoleId());
+            Resource resource = resources.get(row.getResourceId());
+
+            if (row.getRoleId() == null)
+                report.addError(row.getRowNumber(), "Role id is not a valid number");
+            else if (role == null)
+                report.addError(row.getRowNumber(), "There is no role with id " + row.getRoleId());
+            else if (!costCenterRoles.contains(role))
+                report.addError(row.getRowNumber(), String.format("%s is not allowed for %s", role, budget.getCostCenter()));
+
+            if (row.getResourceId() == null)
+                report.addError(row.getRowNumber(), "Resource id is not a valid number");
+            else if (resource == null)
+                report.addError(row.getRowNumber(), "There is no resource with id " + row.getResourceId());
+            else if (!costCenterResources.contains(resource))
+                report.addError(row.getRowNumber(), String.format("%s is not allowed for %s", resource, budget.getCostCenter()));
+            else if (role != null && !role.getResources().contains(resource))
+                report.addError(row.getRowNumber(), String.format("%s is not allowed for %s", resource, role));
+
+            if (row.getProposedAmount() == null)
+                report.addError(row.getRowNumber(), "Proposed amount is not a valid number");
+            else if (row.getProposedAmount().signum() < 0)
+                report.addError(row.getRowNumber(), "Amount proposed should not be negative");
+
+            if (role != null) {
+                Optional<String> proposeError = proposeErrors.computeIfAbsent(role, r -> {
+                    try {
+                        ensureUserCanPropose(budget, r, creator);
+                        return Optional.empty();
+                    } catch (IllegalArgumentException e) {
+                        return Optional.of(e.getMessage());
+                    }
+                });
+                proposeError.ifPresent(message -> report.addError(row.getRowNumber(), message));
             }
+
+            Pair<Long, Long> key = Pair.of(row.getRoleId(), row.getResourceId());
+            AllocationImportRow duplicate = validRows.putIfAbsent(key, row);
+            if (duplicate != null)
+                report.addError(row.getRowNumber(), "Allocation is repeated, it was already imported on row " + duplicate.getRowNumber());
+        }
+
+        if (report.hasErrors()) return report;
+
+        //ensure proposed amount does not exceed allocated funds, checked once for the whole import
+        Money proposed = allocations.entrySet()
+                .stream()
+                .filter(entry -> !validRows.containsKey(entry.getKey()))
+                .map(entry -> entry.getValue().getProposedAmount())
+                .reduce(Money.getZERO(), (total, amount) -> total.plus(amount));
+        proposed = validRows.values()
+                .stream()
+                .map(row -> new Money(row.getProposedAmount()))
+                .reduce(proposed, (total, amount) -> total.plus(amount));
+
+        if (proposed.isGreaterThan(budget.getFund())) {
+            report.addError(String.format("Total allocations %s are greater than allocated funds %s for the budget", proposed, budget.getFund()));
+            return report;
         }
+
+        List<Allocation> toSave = new ArrayList<>();
+        List<Allocation> toDelete = new ArrayList<>();
+        validRows.forEach((key, row) -> {
+            Allocation allocation = allocations.get(key);
+            Money proposedAmount = new Money(row.getProposedAmount());
+
+            if (proposedAmount.isZero()) {
+                if (allocation != null) toDelete.add(allocation);
+                return;
+            }
+
+            if (allocation == null) {
+                allocation = new Allocation(budget, roles.get(row.getRoleId()), resources.get(row.getResourceId()));
+                allocation.setCreator(creator);
+                report.setCreated(report.getCreated() + 1);
+            } else if (allocation.getProposedAmount().equals(proposedAmount)
+                    && Objects.equals(allocation.getDescription(), row.getDescription()))
+                return;
+            else report.setUpdated(report.getUpdated() + 1);
+
+            boolean amountChanged = !allocation.getProposedAmount().equals(proposedAmount);
+            allocation.setProposedAmount(proposedAmount);
+            allocation.setDescription(row.getDescription());
+            if (amountChanged)
+                allocation.getChanges().add(new AllocationChange(creator, proposedAmount, row.getReason()));
+
+            toSave.add(allocation);
+        });
+
+        Lists.partition(toSave, importBatchSize).forEach(batch -> {
+            allocationRepository.saveAll(batch);
+            allocationRepository.flush();
+        });
+
+        Lists.partition(toDelete, importBatchSize).forEach(batch -> {
+            allocationRepository.deleteAll(batch);
+            allocationRepository.flush();
+        });
+        report.setDeleted(toDelete.size());
+
+        balanceService.rebuild(budget);
+        return report;
     }
 
     public List<AllocationProposal> prepareAllocationProposals(Budget budget, User user) {
+        return streamAllocationProposals(budget, user).collect(Collectors.toList());
+    }
+
+    /**
+     * Proposals are created lazily as the stream is consumed so that large templates are not held in memory
+     */
+    public Stream<AllocationProposal> streamAllocationProposals(Budget budget, User user) {
+        CostCenter costCenter = budget.getCostCenter();
+        Set<Role> costCenterRoles = costCenterService.getRoles(costCenter);
 
+        List<Role> roles;
         if (trackerService.canApprove(budget, user)) {
             //if user is currently required to approve the associated budget then he/she can change or propose allocations
             //from any role/resource combination allowed
-            return costCenterService.getRoles(budget.getCostCenter())
-                    .stream()
-                    .flatMap(role -> resourceService.getResources(role, budget.getCostCenter()).stream().map(resource -> createAllocationProposal(budget, role, resource)))
-                    .collect(Collectors.toList());
+            roles = new ArrayList<>(costCenterRoles);
         } else {
-            return roleService
+            roles = roleService
                     .findRoles(user)
                     .stream()
-                    .filter(role -> costCenterService.allowRole(budget.getCostCenter(), role))
-                    .flatMap(role -> resourceService.getResources(role, budget.getCostCenter()).stream().map(resource -> createAllocationProposal(budget, role, resource)))
+                    .filter(costCenterRoles::contains)
                     .collect(Collectors.toList());
         }
+
+        //the whole matrix is read in bulk and joined here instead of querying each role/resource cell
+        Map<Long, Set<Resource>> roleResources = roleService.getResources(roles, costCenter);
+        Map<Pair<Long, Long>, Allocation> allocations = getAllocationsByLine(budget);
+
+        return roles.stream()
+                .flatMap(role -> roleResources.getOrDefault(role.getId(), Collections.emptySet())
+                        .stream()
+                        .map(resource -> createAllocationProposal(
+                                budget,
+                                role,
+                                resource,
+                                allocations.get(Pair.of(role.getId(), resource.getId())))));
     }
 
-    private AllocationProposal createAllocationProposal(Budget budget, Role role, Resource resource) {
-        Optional<Allocation> allocation = findAllocation(budget, role, resource);
-        if (allocation.isPresent())
-            return new AllocationProposal(allocation.get());
+    private AllocationProposal createAllocationProposal(Budget budget, Role role, Resource resource, Allocation allocation) {
+        if (allocation != null)
+            return new AllocationProposal(allocation);
         else return new AllocationProposal(budget, role, resource, Money.getZERO());
     }
 
+    /**
+     * All allocations of the budget keyed by role id and resource id
+     */
+    private Map<Pair<Long, Long>, Allocation> getAllocationsByLine(Budget budget) {
+        return getAllocations(budget, null, null)
+                .stream()
+                .collect(Collectors.toMap(
+                        allocation -> Pair.of(allocation.getRole().getId(), allocation.getResource().getId()),
+                        allocation -> allocation));
+    }
+
     @Transactional
     public void propose(List<AllocationProposal> proposals) {
+        //all the budgets are locked up front in a fixed order
+        budgetLocks.lock(proposals.stream().map(AllocationProposal::getBudget).collect(Collectors.toSet()));
         proposals.forEach(proposal -> {
             propose(proposal);
         });
@@ -564,22 +749,13 @@ public class AllocationService {
     public Set<Resource> findResources(Budget budget, User currentUser) {
         if (budget.isAllowRequestWithLessBalance())
             //if allows requisition even when balance is less then use all associated resources with current user for the cost center
-            return resourceService.getResources(currentUser, budget.getCostCenter());
+            return resourceService.findAllowedResources(currentUser, budget.getCostCenter());
             //if only can request for resources with balance then only show the ones with allocations
         else return getAllocatedResources(budget, currentUser);
     }
 
     public Set<Resource> getAllocatedResources(Budget budget, User associatedUser) {
-        Set<Resource> resources = new HashSet<>();
-
-        List<Role> roles = roleService.findRoles(associatedUser);
-
-        roles.forEach(role -> {
-            Set<Resource> allocated = getAllocatedResources(budget, role);
-            resources.addAll(allocated);
-        });
-
-        return resources;
+        return resourceService.findAllocatedResources(budget, associatedUser);
     }
 
     @Transactional
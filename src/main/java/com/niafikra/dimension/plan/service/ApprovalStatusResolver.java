@@ -0,0 +1,132 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.approval.domain.Approvable;
+import com.niafikra.dimension.approval.domain.Tracker;
+import com.niafikra.dimension.plan.domain.*;
+import com.querydsl.core.types.dsl.PathBuilder;
+import com.querydsl.jpa.impl.JPAQueryFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Resolves the approval statuses of a page of approvables (requisitions, budgets, retirements and adjustments)
+ * with a single tracker query keyed by the approval references instead of one or more tracker lookups per row.
+ * <p>
+ * The statuses are the same as the ones of the single approvable status methods of the services
+ */
+@Service
+@Transactional(propagation = Propagation.SUPPORTS, readOnly = true)
+public class ApprovalStatusResolver {
+
+    private static final PathBuilder<Tracker> TRACKER = new PathBuilder<>(Tracker.class, "tracker");
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    /**
+     * @return the statuses of the requisitions by requisition id
+     */
+    public Map<Long, String> getRequisitionStatuses(Collection<Requisition> requisitions) {
+        return resolve(requisitions, Requisition::getId, (requisition, tracker) -> {
+            if (tracker == null) return "Draft";
+            else if (requisition.isApproved()) {
+                if (requisition.isCompletelyPaid()) return "Completely paid";
+                    //paid but not completely
+                else if (requisition.isPaymentProcessed()) return "Partially paid";
+                else return "Pending Payment";
+            } else if (requisition.isDeclined()) return "Declined";
+            else return "Waiting for approval";
+        });
+    }
+
+    /**
+     * Mark the summaries which are not yet submitted for approval so their status is the same as the requisition one
+     */
+    public void resolveSubmitted(Collection<RequisitionSummary> summaries) {
+        Map<String, Tracker> trackers = findTrackers(summaries.stream()
+                .map(RequisitionSummary::getApprovalReference)
+                .collect(Collectors.toSet()));
+        summaries.forEach(summary -> summary.setSubmitted(trackers.containsKey(summary.getApprovalReference())));
+    }
+
+    /**
+     * @return the statuses of the budgets by budget id
+     */
+    public Map<Long, String> getBudgetStatuses(Collection<Budget> budgets) {
+        return resolve(budgets, Budget::getId, (budget, tracker) -> {
+            String status = "";
+            if (tracker == null)
+                status += "Draft";
+            else {
+                status = budget.isApproved() ? "Approved" : (budget.isDeclined() ? "Declined" : "Waiting approval");
+            }
+
+            if (budget.isArchived()) status += " , Archived";
+            if (!budget.isUpToDate()) status += " , Out of date";
+
+            return status;
+        });
+    }
+
+    /**
+     * @return the statuses of the retirements by retirement id
+     */
+    public Map<Long, String> getRetirementStatuses(Collection<Retirement> retirements) {
+        return resolve(retirements, Retirement::getId,
+                (retirement, tracker) -> tracker == null ? "Draft" : tracker.getStatus());
+    }
+
+    /**
+     * @return the statuses of the allocation adjustments by adjustment id
+     */
+    public Map<Long, String> getAllocationAdjustmentStatuses(Collection<AllocationAdjustment> adjustments) {
+        return resolve(adjustments, AllocationAdjustment::getId, (adjustment, tracker) -> {
+            if (tracker == null) return "Draft";
+            return adjustment.isApproved() ? "Approved" : (adjustment.isDeclined() ? "Declined" : "Waiting approval");
+        });
+    }
+
+    /**
+     * @return the statuses of the period adjustments by adjustment id
+     */
+    public Map<Long, String> getPeriodAdjustmentStatuses(Collection<PeriodAdjustment> adjustments) {
+        return resolve(adjustments, PeriodAdjustment::getId, (adjustment, tracker) -> {
+            if (tracker == null) return "Draft";
+            return adjustment.isApproved() ? "Approved" : (adjustment.isDeclined() ? "Declined" : "Waiting approval");
+        });
+    }
+
+    private <T extends Approvable> Map<Long, String> resolve(Collection<T> approvables,
+                                                             Function<T, Long> idOf,
+                                                             BiFunction<T, Tracker, String> statusOf) {
+        Map<String, Tracker> trackers = findTrackers(approvables.stream()
+                .map(Approvable::getApprovalReference)
+                .collect(Collectors.toSet()));
+        Map<Long, String> statuses = new LinkedHashMap<>();
+        for (T approvable : approvables)
+            statuses.put(idOf.apply(approvable), statusOf.apply(approvable, trackers.get(approvable.getApprovalReference())));
+        return statuses;
+    }
+
+    /**
+     * @return the trackers by approval reference, approvables not yet submitted have no tracker
+     */
+    private Map<String, Tracker> findTrackers(Set<String> references) {
+        if (references.isEmpty()) return Collections.emptyMap();
+
+        return new JPAQueryFactory(entityManager)
+                .selectFrom(TRACKER)
+                .where(TRACKER.getString("reference").in(references))
+                .fetch()
+                .stream()
+                .collect(Collectors.toMap(Tracker::getReference, tracker -> tracker, (first, second) -> second));
+    }
+}
@@ -0,0 +1,86 @@
+package com.niafikra.dimension.plan.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.niafikra.dimension.approval.domain.Strategy;
+import com.niafikra.dimension.approval.service.StrategyService;
+import com.niafikra.dimension.core.util.event.SaveEvent;
+import com.niafikra.dimension.plan.domain.CostCenter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memoised strategy lookups by name for the approval criteria scripts, so that a strategy is not searched
+ * by name in the database on every approval step.
+ * <p>
+ * Only the ids of the strategies found are kept, the strategy is loaded by id in the session of the caller so
+ * no entity is shared between sessions. Names without a strategy are not remembered so a strategy created later
+ * is used at once, the ids are dropped when a strategy is saved and also expire after the configured time
+ */
+@Service
+public class ApprovalStrategyResolver {
+
+    public static final String GENERAL_BUDGET_FLOW = "GeneralBudgetFlow";
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private StrategyService strategyService;
+    private Cache<String, Long> strategyIds;
+
+    public ApprovalStrategyResolver(StrategyService strategyService,
+                                    @Value("${dimension.approval.strategy-cache-ttl-seconds:300}") long ttlSeconds) {
+        this.strategyService = strategyService;
+        this.strategyIds = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * @return the strategy or null when there is no strategy with the name
+     */
+    public Strategy getStrategy(String name) {
+        Long strategyId = strategyIds.getIfPresent(name);
+        if (strategyId != null) {
+            Strategy strategy = entityManager.find(Strategy.class, strategyId);
+            if (strategy != null && name.equals(strategy.getName())) return strategy;
+
+            //deleted or renamed since it was found
+            strategyIds.invalidate(name);
+        }
+
+        Strategy strategy = strategyService.getStrategy(name);
+        if (strategy != null) strategyIds.put(name, strategy.getId());
+        return strategy;
+    }
+
+    /**
+     * The budget flow of the cost center named {@code <CostCenter>Flow} (without spaces) or the general budget flow
+     */
+    public Strategy getBudgetStrategy(CostCenter costCenter) {
+        String strategyName = costCenter.getName().trim().replaceAll(" ", "") + "Flow";
+        Strategy strategy = getStrategy(strategyName);
+        if (strategy == null)
+            strategy = getStrategy(GENERAL_BUDGET_FLOW);
+        return strategy;
+    }
+
+    /**
+     * Save events of every entity are received since the type of the entity is erased from the event
+     */
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onSaved(SaveEvent<?> event) {
+        if (event.getEntity() instanceof Strategy)
+            invalidate();
+    }
+
+    public void invalidate() {
+        strategyIds.invalidateAll();
+    }
+}
@@ -0,0 +1,63 @@
+package com.niafikra.dimension.plan.service;
+
+import com.google.common.util.concurrent.Striped;
+import com.niafikra.dimension.plan.domain.Budget;
+import com.niafikra.dimension.plan.repository.BudgetRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.*;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Serialises the changes that are checked against a budget fund (allocation proposals and imports) per budget
+ * <p>
+ * A striped lock of the budget is taken inside the JVM so concurrent changes of the same budget wait cheaply while
+ * other budgets proceed, then the budget row is locked in the database so other nodes are serialised too.
+ * Both locks are held until the current transaction completes
+ */
+@Service
+public class BudgetLocks {
+
+    private BudgetRepository budgetRepository;
+    private Striped<Lock> locks;
+
+    public BudgetLocks(BudgetRepository budgetRepository,
+                       @Value("${dimension.budget.lock-stripes:64}") int stripes) {
+        this.budgetRepository = budgetRepository;
+        this.locks = Striped.lock(stripes);
+    }
+
+    /**
+     * @return the budget as currently stored, read while holding the locks
+     */
+    public Budget lock(Budget budget) {
+        return lock(Collections.singleton(budget)).get(budget.getId());
+    }
+
+    /**
+     * Lock several budgets, the locks are always taken in the same order so concurrent callers can not deadlock
+     *
+     * @return the budgets as currently stored by id, read while holding the locks
+     */
+    public Map<Long, Budget> lock(Collection<Budget> budgets) {
+        if (!TransactionSynchronizationManager.isActualTransactionActive())
+            throw new IllegalStateException("Budgets can only be locked within a transaction");
+
+        Set<Long> budgetIds = new TreeSet<>();
+        budgets.forEach(budget -> budgetIds.add(budget.getId()));
+
+        //bulkGet returns the stripes in a fixed order whatever the order of the keys
+        for (Lock lock : locks.bulkGet(budgetIds)) {
+            lock.lock();
+            TransactionCallbacks.afterCompletion(lock::unlock);
+        }
+
+        Map<Long, Budget> locked = new LinkedHashMap<>();
+        for (Long budgetId : budgetIds)
+            locked.put(budgetId, budgetRepository.findLockedById(budgetId)
+                    .orElseThrow(() -> new IllegalArgumentException("There is no budget with id :" + budgetId)));
+        return locked;
+    }
+}
@@ -19,22 +19,27 @@ import lombok.Builder;
 import lombok.Getter;
 import lombok.Setter;
 import org.apache.commons.lang3.StringUtils;
-import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.context.event.EventListener;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Boniface Chacha
@@ -43,7 +48,7 @@ import java.util.stream.Collectors;
  * @date 9/12/17 7:44 PM
  */
 @Service
-public class BudgetService implements InitializingBean, HasLogger {
+public class BudgetService implements HasLogger {
 
     @Value("${dimension.budget.funds-exceed-cost}")
     private boolean fundsExceedCost;
@@ -51,6 +56,11 @@ public class BudgetService implements InitializingBean, HasLogger {
     @Value("${dimension.budget.archiving-outdated-threshold-months}")
     private int archivingOutdatedThresholdMonthCount;
 
+    @Value("${dimension.budget.archiving-chunk-size:500}")
+    private int archivingChunkSize;
+
+    private final AtomicLong archivedBudgetCount = new AtomicLong();
+
     private BudgetRepository budgetRepository;
     private AllocationService allocationService;
     private UserService userService;
@@ -58,6 +68,8 @@ public class BudgetService implements InitializingBean, HasLogger {
     private ApprovalTrackerService trackerService;
     private RoleService roleService;
     private CostCenterService costCenterService;
+    private BudgetSnapshotCache snapshotCache;
+    private TransactionTemplate transactionTemplate;
 
     public BudgetService(BudgetRepository budgetRepository,
                          AllocationService allocationService,
@@ -65,7 +77,9 @@ public class BudgetService implements InitializingBean, HasLogger {
                          CriteriaService criteriaService,
                          ApprovalTrackerService trackerService,
                          RoleService roleService,
-                         CostCenterService costCenterService) {
+                         CostCenterService costCenterService,
+                         PlatformTransactionManager transactionManager,
+                         @Lazy BudgetSnapshotCache snapshotCache) {
         this.budgetRepository = budgetRepository;
         this.allocationService = allocationService;
         this.userService = userService;
@@ -73,6 +87,8 @@ public class BudgetService implements InitializingBean, HasLogger {
         this.trackerService = trackerService;
         this.roleService = roleService;
         this.costCenterService = costCenterService;
+        this.snapshotCache = snapshotCache;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
     }
 
     public Page<Budget> findBudgets(BudgetFilter filter, Pageable pageable) {
@@ -114,49 +130,93 @@ public class BudgetService implements InitializingBean, HasLogger {
     }
 
     public Set<Budget> findActiveAllocatedBudgets(User user) {
-        List<Role> roles = roleService.findRoles(user);
-        return roles.stream()
-                .flatMap(role -> findActiveAllocatedBudgets(role).stream())
-                .collect(Collectors.toSet());
+        return findActiveAllocatedBudgets(roleService.findRoleIds(user));
     }
 
     public Set<Budget> findActiveAllocatedBudgets(Role role) {
-        BooleanBuilder query = new BooleanBuilder();
-        query.and(QBudget.budget.allocations.any().role.eq(role));
-        query.and(QBudget.budget.approved.eq(true));
+        return findActiveAllocatedBudgets(Collections.singleton(role.getId()));
+    }
 
-        List<Budget> budgets = budgetRepository.findAll(query);
-        return budgets.stream()
-                .filter(budget -> budget.isActive())
-                .collect(Collectors.toSet());
+    /**
+     * Active budgets with allocations to any of the roles, read by a single query
+     */
+    public Set<Budget> findActiveAllocatedBudgets(Collection<Long> roleIds) {
+        if (roleIds.isEmpty()) return Collections.emptySet();
+        return new LinkedHashSet<>(budgetRepository.findAll(createActiveAllocatedPredicate(roleIds)));
+    }
+
+    public List<BudgetOption> findActiveAllocatedBudgetOptions(User user) {
+        List<Long> roleIds = roleService.findRoleIds(user);
+        if (roleIds.isEmpty()) return Collections.emptyList();
+        return budgetRepository.findOptions(createActiveAllocatedPredicate(roleIds));
     }
 
     public Set<Budget> findActiveAssociatedBudgets(Role role) {
-        BooleanBuilder query = new BooleanBuilder();
-        query.and(QBudget.budget.costCenter.roles.contains(role));
-        query.and(QBudget.budget.approved.eq(true));
+        return findActiveAssociatedBudgets(Collections.singleton(role.getId()));
+    }
 
-        List<Budget> budgets = budgetRepository.findAll(query);
-        return budgets.stream()
-                .filter(budget -> budget.isActive())
-                .collect(Collectors.toSet());
+    public Set<Budget> findActiveAssociatedBudgets(User user) {
+        return findActiveAssociatedBudgets(roleService.findRoleIds(user));
     }
 
+    /**
+     * Active budgets of the cost centers of any of the roles, read by a single query
+     */
+    public Set<Budget> findActiveAssociatedBudgets(Collection<Long> roleIds) {
+        if (roleIds.isEmpty()) return Collections.emptySet();
+        return new LinkedHashSet<>(budgetRepository.findAll(createActiveAssociatedPredicate(roleIds)));
+    }
 
-    public Set<Budget> findActiveAssociatedBudgets(User user) {
-        List<Role> roles = roleService.findRoles(user);
-        return roles.stream()
-                .flatMap(role -> findActiveAssociatedBudgets(role).stream())
-                .collect(Collectors.toSet());
+    public List<BudgetOption> findActiveAssociatedBudgetOptions(User user) {
+        List<Long> roleIds = roleService.findRoleIds(user);
+        if (roleIds.isEmpty()) return Collections.emptyList();
+        return budgetRepository.findOptions(createActiveAssociatedPredicate(roleIds));
+    }
+
+    private BooleanBuilder createActiveAllocatedPredicate(Collection<Long> roleIds) {
+        return createActivePredicate().and(QBudget.budget.allocations.any().role.id.in(roleIds));
+    }
+
+    private BooleanBuilder createActiveAssociatedPredicate(Collection<Long> roleIds) {
+        return createActivePredicate().and(QBudget.budget.costCenter.roles.any().id.in(roleIds));
+    }
+
+    /**
+     * Same conditions as {@link Budget#isActive()}
+     */
+    private BooleanBuilder createActivePredicate() {
+        QBudget budget = QBudget.budget;
+        LocalDate today = LocalDate.now();
+        return new BooleanBuilder()
+                .and(budget.approved.isTrue())
+                .and(budget.archived.isFalse())
+                .and(budget.startDate.loe(today))
+                .and(budget.endDate.goe(today));
     }
 
     public Money calculateTotalAllocation(Budget budget) {
-        return allocationService.calculateTotalAllocated(budget, (Role) null, null);
+        return snapshotCache.getSnapshot(budget).getAllocated();
     }
 
 
     public Money calculateTotalProposed(Budget budget) {
-        return allocationService.calculateTotalProposed(budget, null, null);
+        return snapshotCache.getSnapshot(budget).getProposed();
+    }
+
+    public Money calculateTotalExpenditure(Budget budget) {
+        return snapshotCache.getSnapshot(budget).getExpenditure();
+    }
+
+    public Money calculateTotalBalance(Budget budget) {
+        return snapshotCache.getSnapshot(budget).getBalance();
+    }
+
+    public Money calculateTotalPendingPayments(Budget budget) {
+        return snapshotCache.getSnapshot(budget).getPendingPayments();
+    }
+
+    public Money calculateTotalGrossBalance(Budget budget) {
+        return snapshotCache.getSnapshot(budget).getGrossBalance();
     }
 
     @Transactional
@@ -358,24 +418,49 @@ public class BudgetService implements InitializingBean, HasLogger {
         return budgetRepository.save(budget);
     }
 
-    @Transactional
+    /**
+     * Archive the budgets which ended before the archiving threshold in chunks, each chunk is archived by a
+     * single bulk update in its own transaction
+     *
+     * @return the number of archived budgets
+     */
     @Scheduled(cron = "0 1 0 * * *")
-    public void archiveOutdatedBudgets() {
-        List<Budget> outdatedBudgets = budgetRepository.findAll(
-                QBudget.budget.archived.eq(false)
-                        .and(QBudget.budget.endDate.before(LocalDate.now().minusMonths(archivingOutdatedThresholdMonthCount)))
-        );
-
-        outdatedBudgets.forEach(budget -> archive(budget));
-    }
-
-
-    @Override
-    @Transactional()
-    public void afterPropertiesSet() {
-        //Archiving outdated budgets
-        getLogger().info("Archiving outdated budget...");
-        archiveOutdatedBudgets();
+    public long archiveOutdatedBudgets() {
+        LocalDate endedBefore = LocalDate.now().minusMonths(archivingOutdatedThresholdMonthCount);
+        long start = System.currentTimeMillis();
+        long archived = 0;
+        long chunkArchived;
+        do {
+            chunkArchived = transactionTemplate.execute(status ->
+                    budgetRepository.archive(budgetRepository.findOutdatedIds(endedBefore, archivingChunkSize)));
+            archived += chunkArchived;
+        } while (chunkArchived == archivingChunkSize);
+
+        archivedBudgetCount.addAndGet(archived);
+        getLogger().info("Archived {} outdated budgets in {} ms", archived, System.currentTimeMillis() - start);
+        return archived;
+    }
+
+    /**
+     * Total number of budgets archived by the outdated budgets archiving since startup
+     */
+    public long getArchivedBudgetCount() {
+        return archivedBudgetCount.get();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        //archiving runs in the background so it does not delay startup
+        Thread archiving = new Thread(() -> {
+            try {
+                getLogger().info("Archiving outdated budget...");
+                archiveOutdatedBudgets();
+            } catch (Exception e) {
+                getLogger().error("Failed to archive outdated budgets", e);
+            }
+        }, "plan-budget-archiving");
+        archiving.setDaemon(true);
+        archiving.start();
     }
 
     public Budget adjustFund(Budget budget, Money amount, User user) {
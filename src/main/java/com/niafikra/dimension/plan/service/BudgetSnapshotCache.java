@@ -0,0 +1,129 @@
+package com.niafikra.dimension.plan.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.niafikra.dimension.core.util.HasLogger;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.domain.Budget;
+import com.niafikra.dimension.plan.domain.BudgetSnapshot;
+import com.niafikra.dimension.plan.event.BudgetChangeEvent;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of the {@link BudgetSnapshot} of each budget version
+ * <p>
+ * Entries are keyed by the budget id and version so saving a budget moves it to a new entry, changes to the
+ * allocations, expenses and requisitions of a budget drop its entries once the transaction completes.
+ * Entries are also evicted by size and age so figures that are not reported through events are picked up eventually
+ * <p>
+ * Every change moves the cache to a new generation and a snapshot is only stored when no change happened while it
+ * was calculated, so a calculation that read the figures before a change can not put them back after the change
+ */
+@Service
+public class BudgetSnapshotCache implements HasLogger {
+
+    private AllocationService allocationService;
+    private ExpenseService expenseService;
+    private RequisitionService requisitionService;
+    private Cache<SnapshotKey, BudgetSnapshot> snapshots;
+
+    //guarded by snapshots
+    private long generation;
+
+    public BudgetSnapshotCache(AllocationService allocationService,
+                               ExpenseService expenseService,
+                               RequisitionService requisitionService,
+                               @Value("${dimension.budget.snapshot-cache.max-size:500}") long maxSize,
+                               @Value("${dimension.budget.snapshot-cache.ttl-seconds:300}") long ttlSeconds) {
+        this.allocationService = allocationService;
+        this.expenseService = expenseService;
+        this.requisitionService = requisitionService;
+        this.snapshots = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    public BudgetSnapshot getSnapshot(Budget budget) {
+        SnapshotKey key = new SnapshotKey(budget.getId(), budget.getVersion());
+        BudgetSnapshot snapshot = snapshots.getIfPresent(key);
+        if (snapshot != null) return snapshot;
+
+        long calculatedGeneration;
+        synchronized (snapshots) {
+            calculatedGeneration = generation;
+        }
+
+        snapshot = calculate(budget);
+
+        synchronized (snapshots) {
+            if (calculatedGeneration == generation) snapshots.put(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMPLETION, fallbackExecution = true)
+    public void onBudgetChange(BudgetChangeEvent event) {
+        synchronized (snapshots) {
+            generation++;
+            if (event.isAllBudgets()) snapshots.invalidateAll();
+            else snapshots.asMap().keySet().removeIf(key -> key.budgetId.equals(event.getBudgetId()));
+        }
+    }
+
+    public void invalidate() {
+        synchronized (snapshots) {
+            generation++;
+            snapshots.invalidateAll();
+        }
+    }
+
+    /**
+     * Hit, miss, load and eviction counts since startup
+     */
+    public CacheStats getStats() {
+        return snapshots.stats();
+    }
+
+    public long getSize() {
+        return snapshots.size();
+    }
+
+    private BudgetSnapshot calculate(Budget budget) {
+        getLogger().debug("Calculating snapshot of budget {} version {}", budget.getId(), budget.getVersion());
+
+        Money proposed = allocationService.calculateTotalProposed(budget, null, null);
+        Money allocated = allocationService.calculateTotalAllocated(budget, null, null);
+        Money expenditure = expenseService.calculateTotalExpenditure(budget);
+        Money balance = allocated.minus(expenditure);
+        Money pendingPayments = requisitionService.calculateTotalPendingPayments(budget, null, null);
+
+        return new BudgetSnapshot(
+                budget.getId(),
+                budget.getVersion(),
+                proposed,
+                allocated,
+                expenditure,
+                balance,
+                pendingPayments,
+                balance.minus(pendingPayments),
+                LocalDateTime.now());
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class SnapshotKey {
+        private final Long budgetId;
+        private final Integer version;
+    }
+}
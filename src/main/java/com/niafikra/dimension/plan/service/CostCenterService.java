@@ -6,6 +6,7 @@ import com.niafikra.dimension.plan.domain.CostCenter;
 import com.niafikra.dimension.plan.domain.QCostCenter;
 import com.niafikra.dimension.plan.domain.Resource;
 import com.niafikra.dimension.plan.domain.Role;
+import com.niafikra.dimension.plan.event.PermissionChangeEvent;
 import com.niafikra.dimension.plan.repository.CostCenterRepository;
 import org.hibernate.Hibernate;
 import org.springframework.context.ApplicationEventPublisher;
@@ -32,23 +33,30 @@ public class CostCenterService {
     private CostCenterRepository costCenterRepository;
     private ApplicationEventPublisher publisher;
     private RoleService roleService;
+    private PermissionMatrixCache permissionMatrix;
 
-    public CostCenterService(CostCenterRepository costCenterRepository, ApplicationEventPublisher publisher, RoleService roleService) {
+    public CostCenterService(CostCenterRepository costCenterRepository,
+                             ApplicationEventPublisher publisher,
+                             RoleService roleService,
+                             PermissionMatrixCache permissionMatrix) {
         this.costCenterRepository = costCenterRepository;
         this.publisher = publisher;
         this.roleService = roleService;
+        this.permissionMatrix = permissionMatrix;
     }
 
     @Transactional
     public CostCenter save(CostCenter costCenter) {
         costCenter = costCenterRepository.save(costCenter);
         publisher.publishEvent(new SaveEvent<CostCenter>(costCenter));
+        publisher.publishEvent(new PermissionChangeEvent(costCenter));
         return costCenter;
     }
 
     @Transactional
     public void delete(CostCenter costCenter) {
         costCenterRepository.delete(costCenter);
+        publisher.publishEvent(new PermissionChangeEvent(costCenter));
     }
 
     public Page<CostCenter> findCostCenters(String nameFilter, Pageable pageable) {
@@ -124,21 +132,15 @@ public class CostCenterService {
         return center.getPlanners();
     }
 
-    @Transactional
     public boolean canPlan(CostCenter costCenter, User user) {
-        CostCenter center = getCostCenter(costCenter.getId());
-        return center.getPlanners().contains(user);
+        return permissionMatrix.canPlan(costCenter, user);
     }
 
-    @Transactional
     public boolean allowResource(CostCenter costCenter, Resource resource) {
-        CostCenter center = getCostCenter(costCenter.getId());
-        return center.getResources().contains(resource);
+        return permissionMatrix.allowResource(costCenter, resource);
     }
 
-    @Transactional
     public boolean allowRole(CostCenter costCenter, Role role) {
-        CostCenter center = getCostCenter(costCenter.getId());
-        return center.getRoles().contains(role);
+        return permissionMatrix.allowRole(costCenter, role);
     }
 }
@@ -9,8 +9,11 @@ import com.niafikra.dimension.group.service.GroupService;
 import com.niafikra.dimension.money.Money;
 import com.niafikra.dimension.plan.domain.*;
 import com.niafikra.dimension.plan.repository.ExpenseRepository;
+import com.niafikra.dimension.plan.repository.KeysetPage;
 import com.querydsl.core.BooleanBuilder;
 import com.querydsl.core.types.Predicate;
+import com.querydsl.core.types.dsl.BooleanExpression;
+import com.querydsl.core.types.dsl.StringPath;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.Setter;
@@ -24,6 +27,9 @@ import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.LocalDateTime;
 import java.time.Period;
+import java.time.YearMonth;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Optional;
@@ -53,6 +59,9 @@ public class ExpenseService {
     private CostCenterService costCenterService;
     private GroupService groupService;
     private UserService userService;
+    private AllocationBalanceService balanceService;
+    private TextSearchIndex textSearchIndex;
+    private RollupService rollupService;
 
     public ExpenseService(AllocationService allocationService,
                           BudgetService budgetService,
@@ -62,7 +71,10 @@ public class ExpenseService {
                           ApprovalTrackerService trackerService,
                           CostCenterService costCenterService,
                           GroupService groupService,
-                          UserService userService) {
+                          UserService userService,
+                          AllocationBalanceService balanceService,
+                          TextSearchIndex textSearchIndex,
+                          RollupService rollupService) {
         this.allocationService = allocationService;
         this.budgetService = budgetService;
         this.paymentService = paymentService;
@@ -72,6 +84,9 @@ public class ExpenseService {
         this.costCenterService = costCenterService;
         this.groupService = groupService;
         this.userService = userService;
+        this.balanceService = balanceService;
+        this.textSearchIndex = textSearchIndex;
+        this.rollupService = rollupService;
     }
 
     public Money calculateTotalExpenditure(Budget budget) {
@@ -79,9 +94,19 @@ public class ExpenseService {
     }
 
     public Money calculateTotalRolesExpenditure(Budget budget, User user, Resource resource) {
-        return roleService.findRoles(user).stream()
-                .map(role -> calculateTotalExpenditure(budget, role, resource))
-                .reduce(Money.getZERO(), (total, expense) -> total.plus(expense));
+        return calculateTotalRolesExpenditure(budget, roleService.findRoleIds(user), resource).getTotal();
+    }
+
+    /**
+     * Expenditure of each of the roles computed by grouped queries
+     */
+    public RoleTotals calculateTotalRolesExpenditure(Budget budget, Collection<Long> roleIds, Resource resource) {
+        if (roleIds.isEmpty()) return RoleTotals.zero(roleIds);
+
+        QExpense expense = QExpense.expense;
+        BooleanBuilder query = new BooleanBuilder(createPredicate(ExpenseFilter.builder().budget(budget).resource(resource).build()))
+                .and(expense.role.id.in(roleIds));
+        return RoleTotals.of(roleIds, expenseRepository.sumActualAmountBy(query, expense.role.id));
     }
 
     public Money calculateTotalExpenditure(Budget budget, Role role, Resource resource) {
@@ -89,21 +114,15 @@ public class ExpenseService {
     }
 
     private Money calculateTotalExpenditure(ExpenseFilter filter) {
-
-        List<Expense> expenses = getExpenses(filter);
-
-        return expenses.stream()
-                .map(expense -> expense.getActualAmount())
-                .reduce(Money.getZERO(), (total, amount) -> total.plus(amount));
-
-    }
-
-    private List<Expense> getExpenses(ExpenseFilter filter) {
-        return expenseRepository.findAll(createPredicate(filter));
+        return expenseRepository.sumActualAmount(createPredicate(filter));
     }
 
 
     public Money calculateTotalBalance(Budget budget, Role role, Resource resource) {
+        //a single budget line is read from the balance ledger
+        if (budget != null && role != null && resource != null)
+            return balanceService.getBalance(budget, role, resource).getBalance();
+
         return allocationService.calculateTotalAllocated(budget, role, resource)
                 .minus(calculateTotalExpenditure(budget, role, resource));
     }
@@ -115,9 +134,15 @@ public class ExpenseService {
     }
 
     public Money calculateTotalRolesBalance(Budget budget, User user, Resource resource) {
-        return roleService.findRoles(user).stream()
-                .map(role -> calculateTotalBalance(budget, role, resource))
-                .reduce(Money.getZERO(), (total, bal) -> total.plus(bal));
+        return calculateTotalRolesBalance(budget, roleService.findRoleIds(user), resource).getTotal();
+    }
+
+    /**
+     * Balance (allocated less expenditure) of each of the roles computed by grouped queries
+     */
+    public RoleTotals calculateTotalRolesBalance(Budget budget, Collection<Long> roleIds, Resource resource) {
+        return allocationService.calculateTotalRolesAllocated(budget, roleIds, resource, null, null)
+                .minus(calculateTotalRolesExpenditure(budget, roleIds, resource));
     }
 
     public Money calculateTotalMonthlyBalance(User currentUser) {
@@ -139,6 +164,17 @@ public class ExpenseService {
         else return expenseRepository.findAll(pageable);
     }
 
+    /**
+     * Page of expenses (newest payment first) read by seeking past the cursor of the previous page
+     *
+     * @param cursor the next cursor of the previous page or null for the first page
+     * @param count  whether to also count all the matching expenses
+     */
+    public KeysetPage<Expense> getExpenses(Optional<ExpenseFilter> filter, String cursor, int size, boolean count) {
+        Predicate query = filter.isPresent() ? createPredicate(filter.get()) : new BooleanBuilder();
+        return expenseRepository.findPage(query, cursor, size, count);
+    }
+
     public Long countExpenses(Optional<ExpenseFilter> filter) {
         if (filter.isPresent()) return expenseRepository.count(createPredicate(filter.get()));
         else return expenseRepository.count();
@@ -172,11 +208,11 @@ public class ExpenseService {
         if (filter.paymentMethod != null)
             query.and(expense.payment.method.eq(filter.paymentMethod));
         if (filter.description != null)
-            query.and(expense.payment.description.containsIgnoreCase(filter.description));
+            query.and(containsIgnoreCase(TextSearchIndex.PAYMENT_DESCRIPTION, expense.payment.description, filter.description));
         if (filter.associate != null)
-            query.and(expense.payment.associate.containsIgnoreCase(filter.associate));
+            query.and(containsIgnoreCase(TextSearchIndex.PAYMENT_ASSOCIATE, expense.payment.associate, filter.associate));
         if (filter.reference != null)
-            query.and(expense.payment.reference.containsIgnoreCase(filter.reference));
+            query.and(containsIgnoreCase(TextSearchIndex.PAYMENT_REFERENCE, expense.payment.reference, filter.reference));
         if (filter.retired != null) {
             if (filter.retired) query.and(expense.retirementEntries.isNotEmpty());
             else query.and(expense.retirementEntries.isEmpty());
@@ -229,7 +265,35 @@ public class ExpenseService {
         payment.setDescription(expense.toString());
 
         payment = paymentService.create(payment);
-        return expenseRepository.save(expense);
+        expense = expenseRepository.save(expense);
+        balanceService.addExpended(expense.getBudget(), expense.getRole(), expense.getResource(), payment.getAmount());
+        rollupService.touch(expense);
+        return expense;
+    }
+
+    /**
+     * Save expenses whose payments were already validated by the caller, the ledger is updated once per budget line
+     */
+    @Transactional
+    public List<Expense> createAll(List<Expense> expenses) {
+        expenses.forEach(expense -> expense.getPayment().setDescription(expense.toString()));
+        paymentService.createAll(expenses.stream().map(Expense::getPayment).collect(Collectors.toList()));
+        List<Expense> saved = expenseRepository.saveAll(expenses);
+
+        saved.stream()
+                .collect(Collectors.groupingBy(
+                        expense -> new AllocationBalance.Key(expense.getBudget(), expense.getRole(), expense.getResource()),
+                        LinkedHashMap::new,
+                        Collectors.toList()))
+                .values()
+                .forEach(line -> balanceService.addExpended(
+                        line.get(0).getBudget(),
+                        line.get(0).getRole(),
+                        line.get(0).getResource(),
+                        line.stream().map(expense -> expense.getPayment().getAmount()).reduce(Money.getZERO(), Money::plus)));
+
+        saved.forEach(rollupService::touch);
+        return saved;
     }
 
     @Transactional
@@ -263,35 +327,40 @@ public class ExpenseService {
     }
 
     public Money calculateTotalMonthlyExpenses(Role role) {
-        LocalDateTime start = DateUtils.getStartOfThisMonth();
-        LocalDateTime end = DateUtils.getEndOfThisMonth();
+        return rollupService.sumMonth(Rollup.Metric.EXPENDITURE, YearMonth.now(), null, role, null).orElseGet(() -> {
+            LocalDateTime start = DateUtils.getStartOfThisMonth();
+            LocalDateTime end = DateUtils.getEndOfThisMonth();
 
-        return calculateTotalExpenditure(ExpenseFilter.builder().role(role).startTime(start).endTime(end).build());
+            return calculateTotalExpenditure(ExpenseFilter.builder().role(role).startTime(start).endTime(end).build());
+        });
     }
 
     public Money calculateTotalMonthlyExpenses(User user) {
+        return rollupService.sumMonth(Rollup.Metric.EXPENDITURE, YearMonth.now(), null, null, user).orElseGet(() -> {
+            LocalDateTime start = DateUtils.getStartOfThisMonth();
+            LocalDateTime end = DateUtils.getEndOfThisMonth();
 
-        LocalDateTime start = DateUtils.getStartOfThisMonth();
-        LocalDateTime end = DateUtils.getEndOfThisMonth();
-
-
-        return calculateTotalExpenditure(user, start, end);
+            return calculateTotalExpenditure(user, start, end);
+        });
     }
 
 
     public Money calculateTotalPrevMonthExpenses(User user) {
-        LocalDateTime start = DateUtils.getStartOfPrevMonth();
-        LocalDateTime end = DateUtils.getEndOfPrevMonth();
+        return rollupService.sumMonth(Rollup.Metric.EXPENDITURE, YearMonth.now().minusMonths(1), null, null, user).orElseGet(() -> {
+            LocalDateTime start = DateUtils.getStartOfPrevMonth();
+            LocalDateTime end = DateUtils.getEndOfPrevMonth();
 
-
-        return calculateTotalExpenditure(user, start, end);
+            return calculateTotalExpenditure(user, start, end);
+        });
     }
 
     public Money calculateTotalMonthlyExpenses() {
-        LocalDateTime start = DateUtils.getStartOfThisMonth();
-        LocalDateTime end = DateUtils.getEndOfThisMonth();
+        return rollupService.sumMonth(Rollup.Metric.EXPENDITURE, YearMonth.now(), null, null, null).orElseGet(() -> {
+            LocalDateTime start = DateUtils.getStartOfThisMonth();
+            LocalDateTime end = DateUtils.getEndOfThisMonth();
 
-        return calculateTotalExpenditure(null, start, end);
+            return calculateTotalExpenditure(null, start, end);
+        });
     }
 
     public Money calculateTotalExpenditure(User associatedUser, LocalDateTime start, LocalDateTime end) {
@@ -299,10 +368,12 @@ public class ExpenseService {
     }
 
     public Money calculateTotalMonthlyExpenses(CostCenter costCenter) {
-        LocalDateTime start = DateUtils.getStartOfThisMonth();
-        LocalDateTime end = DateUtils.getEndOfThisMonth();
+        return rollupService.sumMonth(Rollup.Metric.EXPENDITURE, YearMonth.now(), costCenter, null, null).orElseGet(() -> {
+            LocalDateTime start = DateUtils.getStartOfThisMonth();
+            LocalDateTime end = DateUtils.getEndOfThisMonth();
 
-        return calculateTotalExpenditure(ExpenseFilter.builder().costCenter(costCenter).startTime(start).endTime(end).build());
+            return calculateTotalExpenditure(ExpenseFilter.builder().costCenter(costCenter).startTime(start).endTime(end).build());
+        });
     }
 
     public Optional<Expense> findExpense(Payment payment) {
@@ -391,8 +462,12 @@ public class ExpenseService {
         if (expense.hasRetirements() && !expense.getRetiredDifference().isZero() && !expense.isCompletelySettled())
             throw new IllegalStateException("The expense requires settlement first before marked reconciled");
 
+        Money previousAmount = expense.getActualAmount();
         expense.setReconciled(true);
-        return expenseRepository.save(expense);
+        expense = expenseRepository.save(expense);
+        balanceService.addExpended(expense.getBudget(), expense.getRole(), expense.getResource(), expense.getActualAmount().minus(previousAmount));
+        rollupService.touch(expense);
+        return expense;
     }
 
     public long countOverThresholdPendingReconciliations(User associatedUser) {
@@ -433,6 +508,20 @@ public class ExpenseService {
         return Money.sum(findExpensesPendingReconciliation(user), Expense::getPendingSettlement);
     }
 
+    /**
+     * LIKE on the text column, narrowed to the candidate payments of the text index and the payments updated since
+     * it was built when it can be used
+     */
+    private BooleanExpression containsIgnoreCase(String field, StringPath column, String text) {
+        QExpense expense = QExpense.expense;
+        BooleanExpression contains = column.containsIgnoreCase(text);
+        return textSearchIndex.findPayments(field, text)
+                .map(matches -> expense.payment.id.in(matches.getIds())
+                        .or(expense.payment.lastUpdated.goe(matches.getChangedSince()))
+                        .and(contains))
+                .orElse(contains);
+    }
+
     @Setter
     @Getter
     @Builder
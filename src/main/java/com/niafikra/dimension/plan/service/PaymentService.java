@@ -1,14 +1,21 @@
 package com.niafikra.dimension.plan.service;
 
+import com.google.common.collect.Lists;
 import com.niafikra.dimension.core.security.SecurityUtils;
+import com.niafikra.dimension.core.security.domain.User;
 import com.niafikra.dimension.core.security.service.UserService;
 import com.niafikra.dimension.plan.domain.Payment;
+import com.niafikra.dimension.plan.domain.QPayment;
 import com.niafikra.dimension.plan.repository.PaymentRepository;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
 
 /**
  * @author Boniface Chacha
@@ -22,10 +29,12 @@ public class PaymentService {
 
     private PaymentRepository paymentRepository;
     private UserService userService;
+    private TextSearchIndex textSearchIndex;
 
-    public PaymentService(PaymentRepository paymentRepository, UserService userService) {
+    public PaymentService(PaymentRepository paymentRepository, UserService userService, TextSearchIndex textSearchIndex) {
         this.paymentRepository = paymentRepository;
         this.userService = userService;
+        this.textSearchIndex = textSearchIndex;
     }
 
     @Transactional
@@ -33,7 +42,35 @@ public class PaymentService {
         payment.setTimeCreated(LocalDateTime.now());
         payment.setCreator(SecurityUtils.getCurrentUser(userService));
 
-        return paymentRepository.save(payment);
+        payment = paymentRepository.save(payment);
+        textSearchIndex.index(payment);
+        return payment;
+    }
+
+    /**
+     * Save the payments of a run together, the creator is resolved once for all of them
+     */
+    @Transactional
+    public List<Payment> createAll(List<Payment> payments) {
+        User creator = SecurityUtils.getCurrentUser(userService);
+        LocalDateTime now = LocalDateTime.now();
+        payments.forEach(payment -> {
+            payment.setTimeCreated(now);
+            payment.setCreator(creator);
+        });
+
+        List<Payment> saved = paymentRepository.saveAll(payments);
+        saved.forEach(textSearchIndex::index);
+        return saved;
+    }
+
+    public List<Payment> findPayments(Collection<String> idempotencyKeys) {
+        if (idempotencyKeys.isEmpty()) return Collections.emptyList();
+        return Lists.newArrayList(paymentRepository.findAll(QPayment.payment.idempotencyKey.in(idempotencyKeys)));
+    }
+
+    public Optional<Payment> findPayment(String idempotencyKey) {
+        return paymentRepository.findByIdempotencyKey(idempotencyKey);
     }
 
     public Payment getPayment(Long id) {
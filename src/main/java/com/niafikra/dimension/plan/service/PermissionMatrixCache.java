@@ -0,0 +1,97 @@
+package com.niafikra.dimension.plan.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.core.util.HasLogger;
+import com.niafikra.dimension.plan.domain.CostCenter;
+import com.niafikra.dimension.plan.domain.Resource;
+import com.niafikra.dimension.plan.domain.Role;
+import com.niafikra.dimension.plan.event.PermissionChangeEvent;
+import com.niafikra.dimension.plan.repository.CostCenterRepository;
+import com.niafikra.dimension.plan.repository.RoleRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In memory matrix of the cost center and role permissions (allowed roles, resources and planners)
+ * <p>
+ * The matrix of a cost center or role is loaded on first use and dropped after a cost center or role
+ * is saved or deleted (see {@link PermissionChangeEvent}), so the checks do not hit the database in between.
+ * The allowed ids are held in hash sets so that ids of any size and spread are supported.
+ * Entries also expire after a while so changes made by other nodes are picked up
+ */
+@Service
+public class PermissionMatrixCache implements HasLogger {
+
+    private CostCenterRepository costCenterRepository;
+    private RoleRepository roleRepository;
+
+    private final Cache<Long, CostCenterPermissions> costCenters;
+    private final Cache<Long, Set<Long>> roleResources;
+
+    public PermissionMatrixCache(CostCenterRepository costCenterRepository,
+                                 RoleRepository roleRepository,
+                                 @Value("${dimension.permissions.cache.ttl-seconds:60}") long ttlSeconds) {
+        this.costCenterRepository = costCenterRepository;
+        this.roleRepository = roleRepository;
+        this.costCenters = CacheBuilder.newBuilder().expireAfterWrite(ttlSeconds, TimeUnit.SECONDS).build();
+        this.roleResources = CacheBuilder.newBuilder().expireAfterWrite(ttlSeconds, TimeUnit.SECONDS).build();
+    }
+
+    public boolean canPlan(CostCenter costCenter, User user) {
+        return getPermissions(costCenter).planners.contains(user);
+    }
+
+    public boolean allowRole(CostCenter costCenter, Role role) {
+        return getPermissions(costCenter).roles.contains(role.getId());
+    }
+
+    public boolean allowResource(CostCenter costCenter, Resource resource) {
+        return getPermissions(costCenter).resources.contains(resource.getId());
+    }
+
+    public boolean isResourceAllowed(Role role, Resource resource) {
+        Set<Long> resources = roleResources.asMap().computeIfAbsent(role.getId(),
+                roleId -> new HashSet<>(roleRepository.findResourceIds(roleId)));
+        return resources.contains(resource.getId());
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onPermissionChange(PermissionChangeEvent event) {
+        invalidate();
+    }
+
+    public void invalidate() {
+        costCenters.invalidateAll();
+        roleResources.invalidateAll();
+    }
+
+    private CostCenterPermissions getPermissions(CostCenter costCenter) {
+        return costCenters.asMap().computeIfAbsent(costCenter.getId(), costCenterId -> {
+            getLogger().debug("Loading permissions of cost center {}", costCenterId);
+            return new CostCenterPermissions(
+                    new HashSet<>(costCenterRepository.findRoleIds(costCenterId)),
+                    new HashSet<>(costCenterRepository.findResourceIds(costCenterId)),
+                    costCenterRepository.findPlanners(costCenterId));
+        });
+    }
+
+    private static class CostCenterPermissions {
+        private final Set<Long> roles;
+        private final Set<Long> resources;
+        private final Set<User> planners;
+
+        CostCenterPermissions(Set<Long> roles, Set<Long> resources, Set<User> planners) {
+            this.roles = roles;
+            this.resources = resources;
+            this.planners = planners;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.plan.domain.CostCenter;
+import com.niafikra.dimension.plan.domain.RequisitionApprovalFlow;
+import com.niafikra.dimension.plan.domain.Resource;
+import com.niafikra.dimension.plan.domain.Role;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable lookup tree of the approval flow ids keyed by cost center, role, resource and category ids
+ * where a missing (null) value of the flow is a wildcard.
+ * <p>
+ * Only ids are kept so the index can be shared between threads and sessions, the flow found is loaded
+ * by the caller in its own session.
+ * <p>
+ * At each level the specific branch is searched before the wildcard one, so the flow found is the
+ * same one that sorting the matching flows (see {@link RequisitionApprovalFlow#compareTo}) would put last
+ */
+public final class RequisitionApprovalFlowIndex {
+
+    private static final int DEPTH = 4;
+
+    private final Node root = new Node();
+    private final int size;
+
+    private RequisitionApprovalFlowIndex(Collection<RequisitionApprovalFlow> flows) {
+        flows.forEach(flow -> root.put(keys(flow), 0, flow.getId()));
+        this.size = flows.size();
+    }
+
+    public static RequisitionApprovalFlowIndex build(Collection<RequisitionApprovalFlow> flows) {
+        return new RequisitionApprovalFlowIndex(flows);
+    }
+
+    /**
+     * @return id of the most specific flow matching or null when there is none
+     */
+    public Long find(CostCenter costCenter, Role role, Resource resource) {
+        Object[] keys = {
+                costCenter.getId(),
+                role.getId(),
+                resource.getId(),
+                resource.getCategory() != null ? resource.getCategory().getId() : null
+        };
+        return root.find(keys, 0);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static Object[] keys(RequisitionApprovalFlow flow) {
+        return new Object[]{
+                flow.getCostCenter() != null ? flow.getCostCenter().getId() : null,
+                flow.getRole() != null ? flow.getRole().getId() : null,
+                flow.getResource() != null ? flow.getResource().getId() : null,
+                flow.getCategory() != null ? flow.getCategory().getId() : null
+        };
+    }
+
+    private static class Node {
+        private final Map<Object, Node> children = new HashMap<>();
+        private Node wildcard;
+        private Long flowId;
+
+        void put(Object[] keys, int level, Long flowId) {
+            if (level == DEPTH) {
+                this.flowId = flowId;
+                return;
+            }
+
+            Object key = keys[level];
+            Node child;
+            if (key == null) {
+                if (wildcard == null) wildcard = new Node();
+                child = wildcard;
+            } else child = children.computeIfAbsent(key, k -> new Node());
+
+            child.put(keys, level + 1, flowId);
+        }
+
+        Long find(Object[] keys, int level) {
+            if (level == DEPTH) return flowId;
+
+            Long found = null;
+            Object key = keys[level];
+            if (key != null && children.containsKey(key))
+                found = children.get(key).find(keys, level + 1);
+
+            if (found == null && wildcard != null)
+                found = wildcard.find(keys, level + 1);
+
+            return found;
+        }
+    }
+}
@@ -30,6 +30,9 @@ public class RequisitionApprovalFlowService {
     private ApprovalTrackerService trackerService;
     private StrategyService strategyService;
 
+    //all approval flows indexed in memory, dropped after any flow change and loaded again on next use
+    private volatile RequisitionApprovalFlowIndex flowIndex;
+
     public RequisitionApprovalFlowService(RequisitionApprovalFlowRepository flowRepository,
                                           ApprovalTrackerService trackerService,
                                           StrategyService strategyService) {
@@ -46,6 +49,7 @@ public class RequisitionApprovalFlowService {
     @Transactional
     public void delete(RequisitionApprovalFlow flow) {
         flowRepository.delete(flow);
+        invalidateIndex();
     }
 
     @Transactional
@@ -80,7 +84,10 @@ public class RequisitionApprovalFlowService {
         Optional<RequisitionApprovalFlow> existingFlow = flowRepository.findOne(query);
         if (existingFlow.isPresent())
             throw new IllegalArgumentException("There is a similare approval flow already created with id : " + existingFlow.get().getId());
-        return flowRepository.save(flow);
+
+        flow = flowRepository.save(flow);
+        invalidateIndex();
+        return flow;
     }
 
     @Transactional
@@ -111,7 +118,9 @@ public class RequisitionApprovalFlowService {
         if (existingFlow.isPresent())
             throw new IllegalArgumentException("There is a similar approval flow already created with id : " + existingFlow.get().getId());
 
-        return flowRepository.save(flow);
+        flow = flowRepository.save(flow);
+        invalidateIndex();
+        return flow;
     }
 
     public Set<User> findNextApprovers(Requisition requisition) {
@@ -148,17 +157,35 @@ public class RequisitionApprovalFlowService {
     private RequisitionApprovalFlow findRequisitionApprovalFlow(CostCenter costCenter, Role role, Resource resource) {
         Assert.noNullElements(new Object[]{costCenter, role, resource}, "Both cost center role and resource must be specified ");
 
-        QRequisitionApprovalFlow QApprovalFlow = QRequisitionApprovalFlow.requisitionApprovalFlow;
-        BooleanBuilder query = new BooleanBuilder();
+        //the flow is loaded in the current session so its levels are not shared between sessions
+        Long flowId = getFlowIndex().find(costCenter, role, resource);
+        return flowId != null ? flowRepository.findById(flowId).orElse(null) : null;
+    }
 
-        query.and(QApprovalFlow.costCenter.eq(costCenter).or(QApprovalFlow.costCenter.isNull()));
-        query.and(QApprovalFlow.role.eq(role).or(QApprovalFlow.role.isNull()));
-        query.and(QApprovalFlow.resource.eq(resource).or(QApprovalFlow.resource.isNull()));
-        query.and(QApprovalFlow.category.eq(resource.getCategory()).or(QApprovalFlow.category.isNull()));
+    private RequisitionApprovalFlowIndex getFlowIndex() {
+        RequisitionApprovalFlowIndex index = flowIndex;
+        if (index == null) {
+            synchronized (this) {
+                index = flowIndex;
+                if (index == null) {
+                    index = RequisitionApprovalFlowIndex.build(flowRepository.findAll());
+                    flowIndex = index;
+                }
+            }
+        }
+        return index;
+    }
 
-        List<RequisitionApprovalFlow> flows = flowRepository.findAll(query);
-        if (flows.isEmpty()) return null;
-        return flows.stream().sorted().skip(flows.size() - 1).findFirst().orElse(null);
+    /**
+     * The index is dropped only once the change is committed so lookups never see uncommitted flows,
+     * the lock ensures an index being loaded concurrently is not kept after the change
+     */
+    private void invalidateIndex() {
+        TransactionCallbacks.afterCommit(() -> {
+            synchronized (this) {
+                flowIndex = null;
+            }
+        });
     }
 
     private Strategy createRuntimeStrategy(RequisitionApprovalFlow approvalFlow) {
@@ -1,5 +1,6 @@
 package com.niafikra.dimension.plan.service;
 
+import com.google.common.collect.Lists;
 import com.niafikra.dimension.approval.domain.Tracker;
 import com.niafikra.dimension.approval.event.ApprovalCancellationEvent;
 import com.niafikra.dimension.approval.event.ApprovalCompletionEvent;
@@ -11,8 +12,11 @@ import com.niafikra.dimension.core.security.SecurityUtils;
 import com.niafikra.dimension.core.security.domain.User;
 import com.niafikra.dimension.core.security.service.UserService;
 import com.niafikra.dimension.core.util.DateUtils;
+import com.niafikra.dimension.core.util.HasLogger;
+import com.niafikra.dimension.group.service.GroupService;
 import com.niafikra.dimension.money.Money;
 import com.niafikra.dimension.plan.domain.*;
+import com.niafikra.dimension.plan.repository.KeysetPage;
 import com.niafikra.dimension.plan.repository.RequisitionRepository;
 import com.querydsl.core.BooleanBuilder;
 import lombok.Builder;
@@ -20,16 +24,20 @@ import lombok.Getter;
 import lombok.Setter;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.event.EventListener;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.List;
-import java.util.Optional;
+import java.time.YearMonth;
+import java.util.*;
 import java.util.stream.Collectors;
 
 /**
@@ -41,33 +49,70 @@ import java.util.stream.Collectors;
 
 @Service
 @Transactional(propagation = Propagation.SUPPORTS, readOnly = true)
-public class RequisitionService {
+public class RequisitionService implements HasLogger {
 
     @Value("${dimension.requisition.allow-over-threshold-pending-reconciliation}")
     private boolean allowRequisitionPendingReconciliation;
 
+    @Value("${dimension.requisition.payment-attempts:3}")
+    private int paymentAttempts;
+
+    @Value("${dimension.requisition.payment-run-chunk-size:100}")
+    private int paymentRunChunkSize;
+
     private ExpenseService expenseService;
     private ApprovalTrackerService trackerService;
     private CriteriaService criteriaService;
     private RoleService roleService;
     private UserService userService;
     private RequisitionRepository requisitionRepository;
+    private AllocationBalanceService balanceService;
+    private GroupService groupService;
+    private PermissionMatrixCache permissionMatrix;
+    private TextSearchIndex textSearchIndex;
+    private RollupService rollupService;
+    private PaymentService paymentService;
+    private TransactionTemplate transactionTemplate;
+    private BudgetService budgetService;
+    private ApprovalStatusResolver statusResolver;
 
     public RequisitionService(ExpenseService expenseService,
                               ApprovalTrackerService trackerService,
                               CriteriaService criteriaService,
                               RoleService roleService,
                               UserService userService,
-                              RequisitionRepository requisitionRepository) {
+                              RequisitionRepository requisitionRepository,
+                              AllocationBalanceService balanceService,
+                              GroupService groupService,
+                              PermissionMatrixCache permissionMatrix,
+                              TextSearchIndex textSearchIndex,
+                              RollupService rollupService,
+                              PaymentService paymentService,
+                              PlatformTransactionManager transactionManager,
+                              BudgetService budgetService,
+                              ApprovalStatusResolver statusResolver) {
         this.expenseService = expenseService;
         this.trackerService = trackerService;
         this.criteriaService = criteriaService;
         this.roleService = roleService;
         this.userService = userService;
         this.requisitionRepository = requisitionRepository;
+        this.balanceService = balanceService;
+        this.groupService = groupService;
+        this.permissionMatrix = permissionMatrix;
+        this.textSearchIndex = textSearchIndex;
+        this.rollupService = rollupService;
+        this.paymentService = paymentService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.budgetService = budgetService;
+        this.statusResolver = statusResolver;
     }
 
     public Money calculateTotalGrossBalance(Budget budget, Role role, Resource resource) {
+        //a single budget line is read from the balance ledger
+        if (budget != null && role != null && resource != null)
+            return balanceService.getBalance(budget, role, resource).getGrossBalance();
+
         return expenseService
                 .calculateTotalBalance(budget, role, resource)
                 .minus(calculateTotalPendingPayments(budget, role, resource));
@@ -78,23 +123,53 @@ public class RequisitionService {
     }
 
     public Money calculateTotalGrossRolesBalance(Budget budget, User user, Resource resource) {
-        return roleService.findRoles(user).stream()
-                .map(role -> calculateTotalGrossBalance(budget, role, resource))
-                .reduce(Money.getZERO(), (total, bal) -> total.plus(bal));
+        return calculateTotalGrossRolesBalance(budget, roleService.findRoleIds(user), resource).getTotal();
+    }
+
+    /**
+     * Gross balance (balance less pending payments) of each of the roles computed by grouped queries
+     */
+    public RoleTotals calculateTotalGrossRolesBalance(Budget budget, Collection<Long> roleIds, Resource resource) {
+        return expenseService.calculateTotalRolesBalance(budget, roleIds, resource)
+                .minus(calculateTotalRolesPendingPayments(budget, roleIds, resource));
+    }
+
+    /**
+     * Pending payments of each of the roles computed by grouped queries
+     */
+    public RoleTotals calculateTotalRolesPendingPayments(Budget budget, Collection<Long> roleIds, Resource resource) {
+        if (roleIds.isEmpty()) return RoleTotals.zero(roleIds);
+
+        QRequisition requisition = QRequisition.requisition;
+        BooleanBuilder query = createPredicate(RequisitionFilter
+                .builder()
+                .budget(budget)
+                .resource(resource)
+                .approved(true)
+                .fullFilled(false)
+                .build())
+                .and(requisition.role.id.in(roleIds));
+        return RoleTotals.of(roleIds, requisitionRepository.sumPendingAmountBy(query, requisition.role.id));
     }
 
     public Money calculateTotalPendingPayments(User user) {
-        return getRequisitions(null, null, null, null, null, null, user, null, null, true, false)
-                .stream()
-                .map(req -> req.getPendingAmount())
-                .reduce(Money.getZERO(), (amt1, amt2) -> amt1.plus(amt2));
+        return calculateTotalPendingAmount(RequisitionFilter
+                .builder()
+                .creator(user)
+                .approved(true)
+                .fullFilled(false)
+                .build());
     }
 
     public Money calculateTotalPendingPayments(Budget budget, Role role, Resource resource) {
-        return getRequisitions(null, budget, role, resource, null, null, null, null, null, true, false)
-                .stream()
-                .map(req -> req.getPendingAmount())
-                .reduce(Money.getZERO(), (amt1, amt2) -> amt1.plus(amt2));
+        return calculateTotalPendingAmount(RequisitionFilter
+                .builder()
+                .budget(budget)
+                .role(role)
+                .resource(resource)
+                .approved(true)
+                .fullFilled(false)
+                .build());
     }
 
 
@@ -103,11 +178,14 @@ public class RequisitionService {
                 .and(QRequisition.requisition.approved.isNull())
                 .and(QRequisition.requisition.creator.eq(user));
 
-        List<Requisition> pendingRequests = requisitionRepository.findAll(query);
-        return pendingRequests
-                .stream()
-                .map(req -> req.getPendingAmount())
-                .reduce(Money.getZERO(), (amt1, amt2) -> amt1.plus(amt2));
+        return requisitionRepository.sumPendingAmount(query);
+    }
+
+    /**
+     * Approved amount less the payments already made for the matching requisitions, computed by the database
+     */
+    public Money calculateTotalPendingAmount(RequisitionFilter filter) {
+        return requisitionRepository.sumPendingAmount(createPredicate(filter));
     }
 //
 //    public List<Requisition> getPendingPaymentRequisitions(
@@ -141,9 +219,11 @@ public class RequisitionService {
 
 
     public Money calculateTotalMonthlyRequisitions() {
-        LocalDateTime start = DateUtils.getStartOfThisMonth();
-        LocalDateTime end = DateUtils.getEndOfThisMonth();
-        return calculateTotalRequisitions(null, start, end);
+        return rollupService.sumMonth(Rollup.Metric.REQUISITIONS, YearMonth.now(), null, null, null).orElseGet(() -> {
+            LocalDateTime start = DateUtils.getStartOfThisMonth();
+            LocalDateTime end = DateUtils.getEndOfThisMonth();
+            return calculateTotalRequisitions(null, start, end);
+        });
     }
 
     private Money calculateTotalRequisitions(
@@ -156,10 +236,18 @@ public class RequisitionService {
             User creator,
             Consumer consumer,
             String description) {
-        return getRequisitions(costCenter, budget, role, resource, start, end, creator, consumer, description, null, null)
-                .stream()
-                .map(requisition -> requisition.getApprovedAmount())
-                .reduce(Money.getZERO(), (total, amount) -> total.plus(amount));
+        return requisitionRepository.sumApprovedAmount(createPredicate(RequisitionFilter
+                .builder()
+                .costCenter(costCenter)
+                .budget(budget)
+                .role(role)
+                .resource(resource)
+                .startTime(start)
+                .endTime(end)
+                .creator(creator)
+                .consumer(consumer)
+                .description(description)
+                .build()));
     }
 
 
@@ -245,6 +333,25 @@ public class RequisitionService {
         return requisitionRepository.findAll(createPredicate(filter), pageable);
     }
 
+    /**
+     * Page of requisitions (newest first) read by seeking past the cursor of the previous page
+     *
+     * @param cursor the next cursor of the previous page or null for the first page
+     * @param count  whether to also count all the matching requisitions
+     */
+    public KeysetPage<Requisition> findRequisitions(RequisitionFilter filter, String cursor, int size, boolean count) {
+        return requisitionRepository.findPage(createPredicate(filter), cursor, size, count);
+    }
+
+    /**
+     * Page of requisition summaries for list views, use {@link #getRequisitionDetail(Long)} to open one
+     */
+    public Page<RequisitionSummary> findRequisitionSummaries(RequisitionFilter filter, Pageable pageable) {
+        Page<RequisitionSummary> summaries = requisitionRepository.findSummaries(createPredicate(filter), pageable);
+        statusResolver.resolveSubmitted(summaries.getContent());
+        return summaries;
+    }
+
     /**
      * @return
      * @deprecated in favour of similar method which accept requisition filter instead
@@ -310,7 +417,12 @@ public class RequisitionService {
         if (filter.consumer != null)
             query.and(requisition.consumer.eq(filter.consumer));
         if (filter.description != null)
-            query.and(requisition.description.containsIgnoreCase(filter.description));
+            //the index only narrows the LIKE to its candidates so the rows are the same with or without it
+            query.and(textSearchIndex.findRequisitions(filter.description)
+                    .map(matches -> requisition.id.in(matches.getIds())
+                            .or(requisition.lastUpdated.goe(matches.getChangedSince()))
+                            .and(requisition.description.containsIgnoreCase(filter.description)))
+                    .orElseGet(() -> requisition.description.containsIgnoreCase(filter.description)));
 
         if (filter.approved != null)
             query.and(requisition.approved.eq(filter.approved));
@@ -331,66 +443,55 @@ public class RequisitionService {
 
         //ensure that the requisitions pass the expenses checks
         validateRequisition(requisition);
-        return requisitionRepository.save(requisition);
+        requisition = requisitionRepository.save(requisition);
+        textSearchIndex.index(requisition);
+        return requisition;
     }
 
     private void validateRequisition(Requisition requisition) {
-        //ensure that the requisitions pass the expense checks
-        expenseService.validateExpense(
-                requisition.getBudget(),
-                requisition.getRole(),
-                requisition.getResource(),
-                requisition.getCreator(),
-                requisition.getTimeCreated()
-        );
+        createValidationContext(requisition, false).validate(requisition);
+    }
 
+    /**
+     * Gather the facts needed to validate the requisition once
+     *
+     * @param submission whether the requisition is being submitted which also requires checking pending reconciliations
+     */
+    public RequisitionValidationContext createValidationContext(Requisition requisition, boolean submission) {
         Budget budget = requisition.getBudget();
-
-        if (!budget.isUpToDate(requisition.getTimeCreated().toLocalDate()))
-            throw new IllegalArgumentException("Requisitions can only be created on an up to date budget");
-
-        if (!budget.isAllowRequestWithLessBalance()) {
-            Money balance = expenseService.calculateTotalBalance(
-                    requisition.getBudget(),
-                    requisition.getRole(),
-                    requisition.getResource()
-            );
-
-            if (balance.isLessThan(requisition.getRequestedAmount()))
-                throw new IllegalStateException("Balance :" + balance + " is less than requested amount :" + requisition.getRequestedAmount());
-        }
-
-        if (!budget.isAllowRequestWithLessGrossBalance()) {
-            Money balance = calculateTotalGrossBalance(
-                    requisition.getBudget(),
-                    requisition.getRole(),
-                    requisition.getResource()
-            );
-
-            if (balance.isLessThan(requisition.getRequestedAmount()))
-                throw new IllegalStateException("Gross balance :" + balance + " is less than requested amount :" + requisition.getRequestedAmount());
-        }
+        Role role = requisition.getRole();
+        Resource resource = requisition.getResource();
+        User creator = requisition.getCreator();
+
+        //permissions are answered from the permission matrix cache
+        RequisitionValidationContext.RequisitionValidationContextBuilder context = RequisitionValidationContext.builder()
+                .budgetApproved(budgetService.isApproved(budget))
+                .member(groupService.isMember(role, creator))
+                .resourceAllowedInRole(permissionMatrix.isResourceAllowed(role, resource))
+                .resourceAllowedInCostCenter(permissionMatrix.allowResource(budget.getCostCenter(), resource))
+                .roleAllowedInCostCenter(permissionMatrix.allowRole(budget.getCostCenter(), role))
+                .balance(balanceService.getBalance(budget, role, resource));
 
         if (!budget.isAllowRequestWithSimilarPending()) {
-            List<Requisition> pendingRequests = findPendingApprovalRequisitions(
-                    requisition.getBudget(),
-                    requisition.getRole(),
-                    requisition.getResource()
-            );
+            QRequisition pending = QRequisition.requisition;
+            BooleanBuilder query = new BooleanBuilder()
+                    .and(pending.approved.isNull())
+                    .and(pending.budget.eq(budget))
+                    .and(pending.role.eq(role))
+                    .and(pending.resource.eq(resource));
 
-            //find other pending request apart from the one validated
             //if requisition is already created validation during submit will need to exclude it
-            pendingRequests = pendingRequests
-                    .stream()
-                    .filter(req -> !req.getId().equals(requisition.getId()))
-                    .collect(Collectors.toList());
+            if (requisition.getId() != null)
+                query.and(pending.id.ne(requisition.getId()));
 
-            if (!pendingRequests.isEmpty()) {
-                Requisition existingReq = pendingRequests.stream().findFirst().get();
-                throw new IllegalArgumentException(String.format("A similar requisition by %s is pending approval :%s", existingReq.getCreator(), requisition));
-            }
+            context.similarPendingCreator(requisitionRepository.findFirstCreator(query));
+        }
 
+        if (submission && !allowRequisitionPendingReconciliation) {
+            context.overThresholdPendingReconciliations(expenseService.countOverThresholdPendingReconciliations(creator));
         }
+
+        return context.build();
     }
 
     public List<Requisition> findPendingApprovalRequisitions(Budget budget, Role role, Resource resource) {
@@ -411,8 +512,13 @@ public class RequisitionService {
             throw new IllegalArgumentException("You are not allowed to update tHis requisition.");
 
         validateRequisition(requisition);
+        return persist(requisition);
+    }
 
+    private Requisition persist(Requisition requisition) {
         requisition = requisitionRepository.save(requisition);
+        textSearchIndex.index(requisition);
+        refreshBalance(requisition);
         if (isSubmitted(requisition))
             trackerService.updateTrackerDescription(requisition);
 
@@ -428,24 +534,17 @@ public class RequisitionService {
         User currentUser = SecurityUtils.getCurrentUser(userService);
         if (!requisition.getCreator().equals(currentUser))
             throw new IllegalArgumentException("Only the creator of requisition is allowed to submit it for approval");
-//
-        validateRequisition(requisition);
-        checkOverThresholdPendingReconciliations(requisition.getCreator());
+
+        //validated once here, the creator is allowed to edit the requisition since it is not yet submitted
+        createValidationContext(requisition, true).validateSubmission(requisition);
 
         requisition.setApprovedAmount(requisition.getRequestedAmount());
-        requisition = update(requisition);
+        requisition = persist(requisition);
         criteriaService.registerApproval(requisition, Requisition.APPROVAL_CRITERIA, currentUser, Collections.emptyMap());
 
         return requisition;
     }
 
-    private void checkOverThresholdPendingReconciliations(User user) {
-        long overThresholdPendingRecon = expenseService.countOverThresholdPendingReconciliations(user);
-        if (overThresholdPendingRecon > 0 && !allowRequisitionPendingReconciliation)
-            throw new IllegalArgumentException(String.format("There is/are %d pending reconciliation(s) for %s that must be reconciled first!", overThresholdPendingRecon, user));
-    }
-
-
     @Transactional
     public Requisition createSubmit(Requisition requisition) {
         requisition = create(requisition);
@@ -458,6 +557,13 @@ public class RequisitionService {
         return submit(requisition);
     }
 
+    /**
+     * Statuses of a page of requisitions by requisition id, resolved with a single tracker query
+     */
+    public Map<Long, String> getStatuses(Collection<Requisition> requisitions) {
+        return statusResolver.getRequisitionStatuses(requisitions);
+    }
+
     public String getStatus(Requisition requisition) {
         if (!isSubmitted(requisition)) return "Draft";
         else {
@@ -485,6 +591,14 @@ public class RequisitionService {
                 .orElseThrow(() -> new IllegalArgumentException("There is no requisition with id :" + id));
     }
 
+    /**
+     * Requisition with its expenses and attachments fetched in the same select
+     */
+    public Requisition getRequisitionDetail(Long id) {
+        return requisitionRepository.findDetailById(id)
+                .orElseThrow(() -> new IllegalArgumentException("There is no requisition with id :" + id));
+    }
+
     @EventListener
     public void onFetchApprovable(FetchApprovableEvent event) {
         Tracker tracker = event.getTracker();
@@ -501,6 +615,7 @@ public class RequisitionService {
         requisition = getRequisition(requisition.getId());
         requisition.setApproved(event.getTracker().isApproved());
         requisitionRepository.save(requisition);
+        refreshBalance(requisition);
     }
 
     @EventListener
@@ -514,6 +629,7 @@ public class RequisitionService {
         requisition.setApproved(null);
         requisition.setApprovedAmount(Money.getZERO());
         requisitionRepository.save(requisition);
+        refreshBalance(requisition);
     }
 
     public boolean isDeclined(Requisition requisition) {
@@ -542,8 +658,59 @@ public class RequisitionService {
         return false;
     }
 
+    /**
+     * Pay the requisition under a new idempotency key, the requisition is still locked while it is paid but a
+     * repeated request is paid again
+     *
+     * @deprecated use {@link #pay(Requisition, Payment, String)} with a key generated once per payment request
+     */
+    @Deprecated
     public Expense pay(Requisition requisition, Payment payment) {
-        requisition = getRequisition(requisition.getId());
+        return pay(requisition, payment, UUID.randomUUID().toString());
+    }
+
+    /**
+     * Record the payment of the requisition exactly once per idempotency key
+     * <p>
+     * The requisition row is locked while its pending amount is checked and the expense is created, so concurrent
+     * payments of the same requisition are applied one after the other and can not overpay it. If a payment with the
+     * same key is already recorded its expense is returned without paying again.
+     * When called outside a transaction each attempt runs in its own transaction and attempts failing on a concurrent
+     * update are retried, the retried attempt finds the payment already recorded if an earlier one had committed
+     *
+     * @param idempotencyKey key generated once per payment request by the caller, e.g when the payment form is opened
+     */
+    public Expense pay(Requisition requisition, Payment payment, String idempotencyKey) {
+        if (idempotencyKey == null || idempotencyKey.isEmpty())
+            throw new IllegalArgumentException("Payment idempotency key is required");
+
+        //joining the transaction of the caller, a failed attempt has marked it for rollback so it is not retried
+        if (TransactionSynchronizationManager.isActualTransactionActive())
+            return transactionTemplate.execute(status -> doPay(requisition.getId(), payment, idempotencyKey));
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return transactionTemplate.execute(status -> doPay(requisition.getId(), payment, idempotencyKey));
+            } catch (ConcurrencyFailureException | DataIntegrityViolationException e) {
+                if (attempt >= paymentAttempts) throw e;
+
+                getLogger().warn("Payment {} of requisition {} failed on attempt {}, retrying", idempotencyKey, requisition.getId(), attempt, e);
+                //the rolled back attempt left the generated id on the payment
+                payment.setId(null);
+                payment.setVersion(null);
+            }
+        }
+    }
+
+    private Expense doPay(Long requisitionId, Payment payment, String idempotencyKey) {
+        Requisition requisition = requisitionRepository.findLocked(requisitionId)
+                .orElseThrow(() -> new IllegalArgumentException("There is no requisition with id :" + requisitionId));
+
+        //checked after the lock so a repeated request waiting on a concurrent one sees its payment
+        Optional<Payment> recorded = paymentService.findPayment(idempotencyKey);
+        if (recorded.isPresent())
+            return expenseService.findExpense(recorded.get())
+                    .orElseThrow(() -> new IllegalStateException("Payment " + idempotencyKey + " is already recorded but not as a requisition expense"));
 
         if (!requisition.isApproved())
             throw new IllegalStateException("Requisition is not approved");
@@ -562,6 +729,7 @@ public class RequisitionService {
 
 //        checkOverThresholdPendingReconciliations(requisition.getCreator());
 
+        payment.setIdempotencyKey(idempotencyKey);
         Expense expense = new Expense(
                 requisition.getBudget(),
                 requisition.getRole(),
@@ -577,9 +745,241 @@ public class RequisitionService {
             requisition.setFulfilled(true);
 
         requisitionRepository.save(requisition);
+        balanceService.addPendingPayment(requisition.getBudget(), requisition.getRole(), requisition.getResource(), Money.getZERO().minus(payment.getAmount()));
         return expense;
     }
 
+    /**
+     * Pay many requisitions at once, each instruction is validated and reported on its own
+     * <p>
+     * The instructions are first checked against their budget lines outside any transaction, then paid in chunks each
+     * committed in its own transaction. A chunk locks its requisitions, checks the amounts against the pending amounts
+     * and a snapshot of the line balances read once for the chunk, then saves the payments and expenses together.
+     * If a chunk fails to commit its instructions are reported as failed and the run continues with the next chunk,
+     * so running the same instructions again only pays the ones which are not yet paid
+     */
+    public PaymentRunReport pay(List<PaymentInstruction> instructions) {
+        if (TransactionSynchronizationManager.isActualTransactionActive())
+            throw new IllegalStateException("Payment runs commit in chunks so they can not join a transaction");
+
+        LocalDateTime paymentTime = LocalDateTime.now();
+        Map<List<Object>, Optional<String>> lineErrors = new HashMap<>();
+        PaymentRunReport report = new PaymentRunReport();
+
+        for (List<PaymentInstruction> chunk : Lists.partition(instructions, paymentRunChunkSize)) {
+            Map<PaymentInstruction, PaymentRunReport.Item> outcomes = new LinkedHashMap<>();
+            chunk.forEach(instruction -> validateInstruction(instruction, paymentTime, lineErrors)
+                    .ifPresent(error -> outcomes.put(instruction, PaymentRunReport.Item.rejected(instruction, error))));
+
+            List<PaymentInstruction> payable = chunk.stream()
+                    .filter(instruction -> !outcomes.containsKey(instruction))
+                    .collect(Collectors.toList());
+            payChunk(payable, paymentTime).forEach(item -> outcomes.put(item.getInstruction(), item));
+
+            chunk.forEach(instruction -> report.add(outcomes.get(instruction)));
+        }
+
+        getLogger().info("{}", report);
+        return report;
+    }
+
+    /**
+     * Any failure validating an instruction is reported on the instruction instead of stopping the run
+     */
+    private Optional<String> validateInstruction(PaymentInstruction instruction, LocalDateTime paymentTime, Map<List<Object>, Optional<String>> lineErrors) {
+        try {
+            return validate(instruction, paymentTime, lineErrors);
+        } catch (RuntimeException e) {
+            getLogger().warn("Failed to validate payment instruction {}", instruction.getIdempotencyKey(), e);
+            return Optional.of("Payment could not be validated: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks which do not depend on the other payments, the budget line checks are done once per line and payee
+     */
+    private Optional<String> validate(PaymentInstruction instruction, LocalDateTime paymentTime, Map<List<Object>, Optional<String>> lineErrors) {
+        if (instruction.getIdempotencyKey() == null || instruction.getIdempotencyKey().isEmpty())
+            return Optional.of("Payment idempotency key is required");
+
+        if (instruction.getMethod() == null)
+            return Optional.of("Payment method is required");
+
+        if (instruction.getAmount() == null || instruction.getAmount().isZero() || instruction.getAmount().isLessThan(Money.getZERO()))
+            return Optional.of("Payment amount shall be greater than zero");
+
+        Requisition requisition = instruction.getRequisition();
+        if (requisition == null)
+            return Optional.of("Requisition is required");
+
+        //the payee is part of the key since it must be a member of the role
+        List<Object> lineAndPayee = Arrays.asList(
+                requisition.getBudget().getId(),
+                requisition.getRole().getId(),
+                requisition.getResource().getId(),
+                requisition.getCreator());
+
+        return lineErrors.computeIfAbsent(lineAndPayee, key -> {
+            try {
+                expenseService.validateExpense(
+                        requisition.getBudget(),
+                        requisition.getRole(),
+                        requisition.getResource(),
+                        requisition.getCreator(),
+                        paymentTime);
+                return Optional.empty();
+            } catch (RuntimeException e) {
+                return Optional.of(e.getMessage());
+            }
+        });
+    }
+
+    private List<PaymentRunReport.Item> payChunk(List<PaymentInstruction> instructions, LocalDateTime paymentTime) {
+        if (instructions.isEmpty()) return Collections.emptyList();
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return transactionTemplate.execute(status -> doPayChunk(instructions, paymentTime));
+            } catch (ConcurrencyFailureException | DataIntegrityViolationException e) {
+                if (attempt < paymentAttempts) {
+                    getLogger().warn("Payment run chunk failed on attempt {}, retrying", attempt, e);
+                    continue;
+                }
+                return failed(instructions, e);
+            } catch (RuntimeException e) {
+                return failed(instructions, e);
+            }
+        }
+    }
+
+    private List<PaymentRunReport.Item> failed(List<PaymentInstruction> instructions, RuntimeException e) {
+        getLogger().error("Payment run chunk of {} instructions failed", instructions.size(), e);
+        return instructions.stream()
+                .map(instruction -> PaymentRunReport.Item.failed(instruction, "Payment was not recorded: " + e.getMessage()))
+                .collect(Collectors.toList());
+    }
+
+    private List<PaymentRunReport.Item> doPayChunk(List<PaymentInstruction> instructions, LocalDateTime paymentTime) {
+        //locked in id order so concurrent runs and single payments can not deadlock
+        Map<Long, Requisition> requisitions = requisitionRepository.findLocked(
+                instructions.stream().map(instruction -> instruction.getRequisition().getId()).collect(Collectors.toSet()))
+                .stream()
+                .collect(Collectors.toMap(Requisition::getId, requisition -> requisition));
+
+        //checked after the locks so instructions paid by a concurrent run are seen
+        Map<String, Payment> recorded = paymentService.findPayments(instructions.stream()
+                .map(PaymentInstruction::getIdempotencyKey)
+                .collect(Collectors.toSet()))
+                .stream()
+                .collect(Collectors.toMap(Payment::getIdempotencyKey, payment -> payment));
+
+        Map<Long, Money> pending = new HashMap<>();
+        Map<AllocationBalance.Key, Money> balances = new HashMap<>();
+        Set<String> keys = new HashSet<>();
+        Map<PaymentInstruction, PaymentRunReport.Item> outcomes = new LinkedHashMap<>();
+        Map<PaymentInstruction, Expense> expenses = new LinkedHashMap<>();
+
+        for (PaymentInstruction instruction : instructions) {
+            Payment payment = recorded.get(instruction.getIdempotencyKey());
+            if (payment != null) {
+                outcomes.put(instruction, PaymentRunReport.Item.paid(instruction, expenseService.findExpense(payment).orElse(null), PaymentRunReport.Status.ALREADY_PAID));
+                continue;
+            }
+
+            if (!keys.add(instruction.getIdempotencyKey())) {
+                outcomes.put(instruction, PaymentRunReport.Item.rejected(instruction, "Payment idempotency key is repeated in the run"));
+                continue;
+            }
+
+            Requisition requisition = requisitions.get(instruction.getRequisition().getId());
+            Optional<String> error = validate(instruction, requisition, pending, balances);
+            if (error.isPresent()) {
+                outcomes.put(instruction, PaymentRunReport.Item.rejected(instruction, error.get()));
+                continue;
+            }
+
+            pending.put(requisition.getId(), pending.get(requisition.getId()).minus(instruction.getAmount()));
+            AllocationBalance.Key line = new AllocationBalance.Key(requisition.getBudget(), requisition.getRole(), requisition.getResource());
+            balances.computeIfPresent(line, (key, balance) -> balance.minus(instruction.getAmount()));
+
+            payment = new Payment(requisition.getCreator().getName(), instruction.getAmount(), true);
+            payment.setTime(paymentTime);
+            payment.setMethod(instruction.getMethod());
+            payment.setReference(instruction.getReference() != null ? instruction.getReference() : "");
+            payment.setIdempotencyKey(instruction.getIdempotencyKey());
+
+            Expense expense = new Expense(
+                    requisition.getBudget(),
+                    requisition.getRole(),
+                    requisition.getResource(),
+                    requisition.getCreator(),
+                    requisition.getConsumer()
+            );
+            expense.setPayment(payment);
+            expenses.put(instruction, expense);
+        }
+
+        expenseService.createAll(new ArrayList<>(expenses.values()));
+
+        Map<AllocationBalance.Key, Money> paidByLine = new LinkedHashMap<>();
+        Map<AllocationBalance.Key, Requisition> lines = new LinkedHashMap<>();
+        expenses.forEach((instruction, expense) -> {
+            Requisition requisition = requisitions.get(instruction.getRequisition().getId());
+            requisition.addExpense(expense);
+            if (requisition.isCompletelyPaid())
+                requisition.setFulfilled(true);
+
+            AllocationBalance.Key line = new AllocationBalance.Key(requisition.getBudget(), requisition.getRole(), requisition.getResource());
+            paidByLine.merge(line, instruction.getAmount(), Money::plus);
+            lines.putIfAbsent(line, requisition);
+            outcomes.put(instruction, PaymentRunReport.Item.paid(instruction, expense, PaymentRunReport.Status.PAID));
+        });
+
+        requisitionRepository.saveAll(requisitions.values());
+        paidByLine.forEach((line, amount) -> {
+            Requisition requisition = lines.get(line);
+            balanceService.addPendingPayment(requisition.getBudget(), requisition.getRole(), requisition.getResource(), Money.getZERO().minus(amount));
+        });
+
+        return instructions.stream().map(outcomes::get).collect(Collectors.toList());
+    }
+
+    /**
+     * Checks against the locked requisition and the amounts already taken by the earlier instructions of the chunk
+     */
+    private Optional<String> validate(PaymentInstruction instruction,
+                                      Requisition requisition,
+                                      Map<Long, Money> pending,
+                                      Map<AllocationBalance.Key, Money> balances) {
+        if (requisition == null)
+            return Optional.of("There is no requisition with id :" + instruction.getRequisition().getId());
+
+        if (!requisition.isApproved())
+            return Optional.of("Requisition is not approved");
+
+        if (requisition.isLocked())
+            return Optional.of("Requisition is locked");
+
+        Money pendingAmount = pending.computeIfAbsent(requisition.getId(), id -> requisition.getPendingAmount());
+        if (pendingAmount.isZero())
+            return Optional.of("Requisition is already paid completely");
+
+        if (instruction.getAmount().isGreaterThan(pendingAmount))
+            return Optional.of("Payment amount:" + instruction.getAmount() + " is greater than the pending amount of the requisition: " + pendingAmount);
+
+        //if the budget does not allow expenses if there is no enuf allocation
+        if (!requisition.getBudget().isAllowExpensesWithLessBalance()) {
+            Money balance = balances.computeIfAbsent(
+                    new AllocationBalance.Key(requisition.getBudget(), requisition.getRole(), requisition.getResource()),
+                    line -> expenseService.calculateTotalBalance(requisition.getBudget(), requisition.getRole(), requisition.getResource()));
+
+            if (instruction.getAmount().isGreaterThan(balance))
+                return Optional.of("Budget has insufficient balance to accommodate this expense. Balance is: " + balance);
+        }
+
+        return Optional.empty();
+    }
+
     public boolean isPayable(Requisition requisition) {
         return isApproved(requisition) && !requisition.isCompletelyPaid();
     }
@@ -597,6 +997,13 @@ public class RequisitionService {
 
         requisition = requisitionRepository.findById(requisition.getId()).get();
         requisitionRepository.delete(requisition);
+        textSearchIndex.remove(requisition);
+        refreshBalance(requisition);
+    }
+
+    private void refreshBalance(Requisition requisition) {
+        balanceService.refreshRequisitions(requisition.getBudget(), requisition.getRole(), requisition.getResource());
+        rollupService.touch(requisition);
     }
 
 
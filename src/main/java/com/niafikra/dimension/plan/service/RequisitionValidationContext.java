@@ -0,0 +1,87 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.domain.AllocationBalance;
+import com.niafikra.dimension.plan.domain.Budget;
+import com.niafikra.dimension.plan.domain.CostCenter;
+import com.niafikra.dimension.plan.domain.Requisition;
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Snapshot of the balances and permission facts of a requisition budget line (budget, role, resource and creator)
+ * gathered once, every requisition rule is then evaluated against the snapshot without going back to the database
+ */
+@Getter
+@Builder
+public class RequisitionValidationContext {
+
+    private final boolean budgetApproved;
+
+    private final boolean member;
+
+    private final boolean resourceAllowedInRole;
+
+    private final boolean resourceAllowedInCostCenter;
+
+    private final boolean roleAllowedInCostCenter;
+
+    private final AllocationBalance balance;
+
+    //creator of another requisition on the same budget line waiting for approval, only checked when not allowed
+    private final User similarPendingCreator;
+
+    //only counted when submitting and pending reconciliations are not allowed
+    private final long overThresholdPendingReconciliations;
+
+    public void validate(Requisition requisition) {
+        Budget budget = requisition.getBudget();
+        CostCenter costCenter = budget.getCostCenter();
+        User creator = requisition.getCreator();
+
+        //same checks as the expense checks
+        if (!budgetApproved)
+            throw new IllegalArgumentException("Expense can only be created on an approved budget");
+
+        if (requisition.getTimeCreated().toLocalDate().isBefore(budget.getStartDate()))
+            throw new IllegalArgumentException("Expense can only be created after the budget start date :" + budget.getStartDate());
+
+        if (!member)
+            throw new IllegalArgumentException(creator + " is not a member of " + requisition.getRole());
+
+        if (!resourceAllowedInRole)
+            throw new IllegalArgumentException(requisition.getResource() + " is not allowed in " + requisition.getRole());
+
+        if (!resourceAllowedInCostCenter)
+            throw new IllegalArgumentException(requisition.getResource() + " is not allowed in " + costCenter);
+
+        if (!roleAllowedInCostCenter)
+            throw new IllegalArgumentException(requisition.getRole() + " is not allowed in " + costCenter);
+
+        if (!budget.isUpToDate(requisition.getTimeCreated().toLocalDate()))
+            throw new IllegalArgumentException("Requisitions can only be created on an up to date budget");
+
+        if (!budget.isAllowRequestWithLessBalance()) {
+            Money balance = this.balance.getBalance();
+            if (balance.isLessThan(requisition.getRequestedAmount()))
+                throw new IllegalStateException("Balance :" + balance + " is less than requested amount :" + requisition.getRequestedAmount());
+        }
+
+        if (!budget.isAllowRequestWithLessGrossBalance()) {
+            Money balance = this.balance.getGrossBalance();
+            if (balance.isLessThan(requisition.getRequestedAmount()))
+                throw new IllegalStateException("Gross balance :" + balance + " is less than requested amount :" + requisition.getRequestedAmount());
+        }
+
+        if (!budget.isAllowRequestWithSimilarPending() && similarPendingCreator != null)
+            throw new IllegalArgumentException(String.format("A similar requisition by %s is pending approval :%s", similarPendingCreator, requisition));
+    }
+
+    public void validateSubmission(Requisition requisition) {
+        validate(requisition);
+
+        if (overThresholdPendingReconciliations > 0)
+            throw new IllegalArgumentException(String.format("There is/are %d pending reconciliation(s) for %s that must be reconciled first!", overThresholdPendingReconciliations, requisition.getCreator()));
+    }
+}
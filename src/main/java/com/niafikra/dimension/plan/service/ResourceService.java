@@ -1,14 +1,20 @@
 package com.niafikra.dimension.plan.service;
 
+import com.google.common.collect.Sets;
 import com.niafikra.dimension.category.domain.Category;
 import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.plan.domain.Budget;
 import com.niafikra.dimension.plan.domain.CostCenter;
+import com.niafikra.dimension.plan.domain.QAllocation;
+import com.niafikra.dimension.plan.domain.QCostCenter;
 import com.niafikra.dimension.plan.domain.QResource;
+import com.niafikra.dimension.plan.domain.QRole;
 import com.niafikra.dimension.plan.domain.Resource;
 import com.niafikra.dimension.plan.domain.Role;
 import com.niafikra.dimension.plan.repository.ResourceRepository;
 import com.querydsl.core.BooleanBuilder;
 import com.querydsl.core.types.Predicate;
+import com.querydsl.jpa.JPAExpressions;
 import lombok.Builder;
 import lombok.Getter;
 import lombok.Setter;
@@ -19,6 +25,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
@@ -82,11 +89,45 @@ public class ResourceService {
 
 
     public Set<Resource> getResources(User user, CostCenter costCenter) {
-        List<Role> roles = roleService.findRoles(user);
-        return roles.stream()
-                .flatMap(role -> roleService.getResources(role).stream())
-                .filter(resource -> costCenterService.getResources(costCenter).contains(resource))
-                .collect(Collectors.toSet());
+        return findAllowedResources(user, costCenter);
+    }
+
+    /**
+     * Resources allowed to any of the user roles which are also allowed on the cost center, resolved in one query
+     */
+    public Set<Resource> findAllowedResources(User user, CostCenter costCenter) {
+        QResource resource = QResource.resource;
+        QRole role = QRole.role;
+        QResource roleResource = new QResource("roleResource");
+        QCostCenter center = QCostCenter.costCenter;
+        QResource centerResource = new QResource("centerResource");
+
+        Predicate query = resource.in(JPAExpressions
+                .select(roleResource)
+                .from(role)
+                .join(role.resources, roleResource)
+                .where(role.users.contains(user)))
+                .and(resource.in(JPAExpressions
+                        .select(centerResource)
+                        .from(center)
+                        .join(center.resources, centerResource)
+                        .where(center.eq(costCenter))));
+
+        return Sets.newLinkedHashSet(resourceRepository.findAll(query));
+    }
+
+    /**
+     * Resources which have allocations on the budget for any of the user roles
+     */
+    public Set<Resource> findAllocatedResources(Budget budget, User user) {
+        QAllocation allocation = QAllocation.allocation;
+        Predicate query = QResource.resource.in(JPAExpressions
+                .select(allocation.resource)
+                .from(allocation)
+                .where(allocation.budget.eq(budget)
+                        .and(allocation.role.users.contains(user))));
+
+        return Sets.newLinkedHashSet(resourceRepository.findAll(query));
     }
 
     /**
@@ -107,6 +148,13 @@ public class ResourceService {
                 .orElseThrow(() -> new IllegalArgumentException("There is no resource with id " + resourceId));
     }
 
+    /**
+     * Resources which do not exist are absent from the result
+     */
+    public List<Resource> getResources(Collection<Long> resourceIds) {
+        return resourceRepository.findAllById(resourceIds);
+    }
+
 
     @Getter
     @Setter
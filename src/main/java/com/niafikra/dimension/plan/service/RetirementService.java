@@ -13,6 +13,7 @@ import com.niafikra.dimension.core.security.domain.User;
 import com.niafikra.dimension.core.security.service.UserService;
 import com.niafikra.dimension.money.Money;
 import com.niafikra.dimension.plan.domain.*;
+import com.niafikra.dimension.plan.repository.KeysetPage;
 import com.niafikra.dimension.plan.repository.RetirementEntryRepository;
 import com.niafikra.dimension.plan.repository.RetirementRepository;
 import com.querydsl.core.BooleanBuilder;
@@ -27,8 +28,10 @@ import org.springframework.util.CollectionUtils;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 
@@ -46,14 +49,16 @@ public class RetirementService {
     private ApprovalTrackerService trackerService;
     private CriteriaService criteriaService;
     private UserService userService;
+    private ApprovalStatusResolver statusResolver;
 
-    public RetirementService(RetirementRepository retirementRepository, RetirementEntryRepository entryRepository, ExpenseService expenseService, ApprovalTrackerService trackerService, CriteriaService criteriaService, UserService userService) {
+    public RetirementService(RetirementRepository retirementRepository, RetirementEntryRepository entryRepository, ExpenseService expenseService, ApprovalTrackerService trackerService, CriteriaService criteriaService, UserService userService, ApprovalStatusResolver statusResolver) {
         this.retirementRepository = retirementRepository;
         this.entryRepository = entryRepository;
         this.expenseService = expenseService;
         this.trackerService = trackerService;
         this.criteriaService = criteriaService;
         this.userService = userService;
+        this.statusResolver = statusResolver;
     }
 
     public Page<Retirement> findRetirementRequests(
@@ -83,6 +88,43 @@ public class RetirementService {
         );
     }
 
+    /**
+     * Page of retirements (newest first) read by seeking past the cursor of the previous page
+     *
+     * @param cursor the next cursor of the previous page or null for the first page
+     * @param count  whether to also count all the matching retirements
+     */
+    public KeysetPage<Retirement> findRetirementRequests(
+            CostCenter costCenter,
+            Budget budget,
+            Role role,
+            Resource resource,
+            LocalDateTime startTime,
+            LocalDateTime endTime,
+            User creator,
+            Consumer consumer,
+            String description,
+            String cursor,
+            int size,
+            boolean count) {
+        return retirementRepository.findPage(
+                createPredicate(
+                        costCenter,
+                        budget,
+                        role,
+                        resource,
+                        startTime,
+                        endTime,
+                        creator,
+                        consumer,
+                        description
+                ),
+                cursor,
+                size,
+                count
+        );
+    }
+
     public Long countRetirementRequests(
             CostCenter costCenter,
             Budget budget,
@@ -290,6 +332,13 @@ public class RetirementService {
                 .orElseThrow(() -> new IllegalArgumentException("There is no retirement request with id :" + id));
     }
 
+    /**
+     * Statuses of a page of retirements by retirement id, resolved with a single tracker query
+     */
+    public Map<Long, String> getStatuses(Collection<Retirement> retirements) {
+        return statusResolver.getRetirementStatuses(retirements);
+    }
+
     public String getStatus(Retirement retirement) {
         if (trackerService.isRegistered(retirement)) {
             return trackerService.getTracker(retirement).getStatus();
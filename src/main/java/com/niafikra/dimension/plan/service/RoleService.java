@@ -1,20 +1,25 @@
 package com.niafikra.dimension.plan.service;
 
 import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.core.util.event.SaveEvent;
 import com.niafikra.dimension.plan.domain.CostCenter;
 import com.niafikra.dimension.plan.domain.QRole;
 import com.niafikra.dimension.plan.domain.Resource;
 import com.niafikra.dimension.plan.domain.Role;
+import com.niafikra.dimension.plan.event.PermissionChangeEvent;
 import com.niafikra.dimension.plan.repository.CostCenterRepository;
 import com.niafikra.dimension.plan.repository.RoleRepository;
 import org.hibernate.Hibernate;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -29,21 +34,31 @@ import java.util.stream.Collectors;
 public class RoleService {
     private RoleRepository roleRepository;
     private CostCenterRepository costCenterRepository;
+    private ApplicationEventPublisher publisher;
+    private PermissionMatrixCache permissionMatrix;
 
     public RoleService(RoleRepository roleRepository,
-                       CostCenterRepository costCenterRepository) {
+                       CostCenterRepository costCenterRepository,
+                       ApplicationEventPublisher publisher,
+                       PermissionMatrixCache permissionMatrix) {
         this.roleRepository = roleRepository;
         this.costCenterRepository = costCenterRepository;
+        this.publisher = publisher;
+        this.permissionMatrix = permissionMatrix;
     }
 
     @Transactional
     public Role save(Role role) {
-        return roleRepository.save(role);
+        role = roleRepository.save(role);
+        publisher.publishEvent(new SaveEvent<Role>(role));
+        publisher.publishEvent(new PermissionChangeEvent(role));
+        return role;
     }
 
     @Transactional
     public void delete(Role role) {
         roleRepository.delete(role);
+        publisher.publishEvent(new PermissionChangeEvent(role));
     }
 
     public Page<Role> findRoles(String nameFilter, Pageable pageable) {
@@ -63,6 +78,13 @@ public class RoleService {
                 .orElseThrow(() -> new IllegalArgumentException("There is no role with id " + id));
     }
 
+    /**
+     * Roles which do not exist are absent from the result
+     */
+    public List<Role> getRoles(Collection<Long> ids) {
+        return roleRepository.findAllById(ids);
+    }
+
     @Transactional
     public Role updateRoleUsers(Role role, Set<User> users) {
         role.setUsers(users);
@@ -79,6 +101,10 @@ public class RoleService {
         return roleRepository.findAll(QRole.role.users.contains(currentUser));
     }
 
+    public List<Long> findRoleIds(User user) {
+        return roleRepository.findRoleIds(user);
+    }
+
     public Set<Role> findAllowedRoles(User user, Resource resource) {
         List<Role> roles = findRoles(user);
         return roles
@@ -114,10 +140,18 @@ public class RoleService {
         return role.getResources();
     }
 
-    @Transactional
+    /**
+     * Resources of the roles which are also allowed on the cost center, loaded in one query
+     *
+     * @return resources keyed by role id
+     */
+    public Map<Long, Set<Resource>> getResources(Collection<Role> roles, CostCenter costCenter) {
+        Set<Long> roleIds = roles.stream().map(Role::getId).collect(Collectors.toSet());
+        return roleRepository.findResources(roleIds, costCenter);
+    }
+
     public boolean isResourceAllowed(Role role, Resource resource) {
-        role = getRole(role.getId());
-        return role.getResources().contains(resource);
+        return permissionMatrix.isResourceAllowed(role, resource);
     }
 
     @Transactional
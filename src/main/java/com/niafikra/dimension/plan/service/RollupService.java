@@ -0,0 +1,420 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.core.util.HasLogger;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.domain.*;
+import com.niafikra.dimension.plan.repository.ExpenseRepository;
+import com.niafikra.dimension.plan.repository.RequisitionRepository;
+import com.niafikra.dimension.plan.repository.RollupBackfillRepository;
+import com.niafikra.dimension.plan.repository.RollupRepository;
+import com.querydsl.core.BooleanBuilder;
+import com.querydsl.core.Tuple;
+import com.querydsl.core.types.Projections;
+import com.querydsl.jpa.impl.JPAQueryFactory;
+import lombok.Data;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.util.*;
+import java.util.function.Supplier;
+
+import static com.niafikra.dimension.plan.domain.Rollup.Granularity.DAY;
+import static com.niafikra.dimension.plan.domain.Rollup.Granularity.MONTH;
+import static com.niafikra.dimension.plan.domain.Rollup.Metric.EXPENDITURE;
+import static com.niafikra.dimension.plan.domain.Rollup.Metric.REQUISITIONS;
+
+/**
+ * Maintains the day and month {@link Rollup} buckets of expenditure and approved requisitions
+ * <p>
+ * The write paths mark the buckets they touch and the touched buckets are recomputed from the source rows
+ * after the transaction commits, each bucket in its own transaction so that a failing refresh never rolls
+ * back the write itself. The day bucket is computed from the source rows and the month bucket from its
+ * day buckets, a refresh that loses a race with another refresh of the same bucket is retried and if it
+ * still fails the nightly refresh repairs the bucket. Historic buckets are built by the backfill job which
+ * runs in the background at startup until it has once completed and every night for the current and
+ * previous months. Until the first backfill is complete the month totals are empty so callers compute
+ * them from the source rows
+ */
+@Service
+public class RollupService implements DisposableBean, HasLogger {
+
+    private static final Object TOUCHED_BUCKETS = new Object();
+    private static final int REFRESH_ATTEMPTS = 3;
+
+    private static final QExpense expense = QExpense.expense;
+    private static final QRequisition requisition = QRequisition.requisition;
+    private static final QRollup rollup = QRollup.rollup;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private RollupRepository rollupRepository;
+    private RollupBackfillRepository backfillRepository;
+    private ExpenseRepository expenseRepository;
+    private RequisitionRepository requisitionRepository;
+    private TransactionTemplate newTransaction;
+    private ThreadPoolTaskExecutor backfillExecutor;
+    private int batchSize;
+
+    private volatile boolean ready;
+
+    public RollupService(RollupRepository rollupRepository,
+                         ExpenseRepository expenseRepository,
+                         RequisitionRepository requisitionRepository,
+                         PlatformTransactionManager transactionManager,
+                         RollupBackfillRepository backfillRepository,
+                         @Value("${dimension.rollup.batch-size:500}") int batchSize) {
+        this.rollupRepository = rollupRepository;
+        this.expenseRepository = expenseRepository;
+        this.requisitionRepository = requisitionRepository;
+        this.backfillRepository = backfillRepository;
+        this.batchSize = batchSize;
+
+        this.newTransaction = new TransactionTemplate(transactionManager);
+        this.newTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+
+        this.backfillExecutor = new ThreadPoolTaskExecutor();
+        this.backfillExecutor.setCorePoolSize(1);
+        this.backfillExecutor.setMaxPoolSize(1);
+        this.backfillExecutor.setThreadNamePrefix("plan-rollup-backfill-");
+        this.backfillExecutor.setDaemon(true);
+        this.backfillExecutor.setWaitForTasksToCompleteOnShutdown(false);
+        this.backfillExecutor.initialize();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Refresh the expenditure buckets of the expense after the current transaction commits
+     */
+    public void touch(Expense expense) {
+        touch(new Bucket(
+                EXPENDITURE,
+                expense.getPayment().getTime().toLocalDate(),
+                expense.getBudget().getCostCenter(),
+                expense.getRole(),
+                expense.getResource(),
+                expense.getAssociatedUser()));
+    }
+
+    /**
+     * Refresh the requisition buckets of the requisition after the current transaction commits
+     */
+    public void touch(Requisition requisition) {
+        touch(new Bucket(
+                REQUISITIONS,
+                requisition.getTimeCreated().toLocalDate(),
+                requisition.getBudget().getCostCenter(),
+                requisition.getRole(),
+                requisition.getResource(),
+                requisition.getCreator()));
+    }
+
+    /**
+     * Total of the metric over the month, any of the cost center, role or user can be null to include all
+     *
+     * @return the total or empty when the buckets are not yet built
+     */
+    public Optional<Money> sumMonth(Rollup.Metric metric, YearMonth month, CostCenter costCenter, Role role, User user) {
+        if (!ready) return Optional.empty();
+
+        BooleanBuilder query = new BooleanBuilder()
+                .and(rollup.metric.eq(metric))
+                .and(rollup.granularity.eq(MONTH))
+                .and(rollup.bucketStart.eq(month.atDay(1)));
+        if (costCenter != null) query.and(rollup.costCenter.eq(costCenter));
+        if (role != null) query.and(rollup.role.eq(role));
+        if (user != null) query.and(rollup.user.eq(user));
+
+        return Optional.of(rollupRepository.sumAmount(query));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (backfillRepository.existsById(RollupBackfill.COMPLETE)) {
+            ready = true;
+            return;
+        }
+
+        backfillExecutor.execute(() -> {
+            YearMonth first = findFirstMonth();
+            YearMonth last = YearMonth.now();
+            backfill(first, last);
+
+            newTransaction.execute(status -> backfillRepository.save(new RollupBackfill(first, last)));
+            ready = true;
+        });
+    }
+
+    @Override
+    public void destroy() {
+        backfillExecutor.shutdown();
+    }
+
+    /**
+     * Rebuild the buckets of the current and previous months from the source rows
+     */
+    @Scheduled(cron = "${dimension.rollup.refresh-cron:0 15 0 * * *}")
+    public void refreshRecentMonths() {
+        YearMonth now = YearMonth.now();
+        backfill(now.minusMonths(1), now);
+    }
+
+    /**
+     * Rebuild the buckets of all the months within the range (both inclusive) from the source rows,
+     * each month is rebuilt in its own transaction
+     */
+    public void backfill(YearMonth from, YearMonth to) {
+        long start = System.currentTimeMillis();
+        for (YearMonth month = from; !month.isAfter(to); month = month.plusMonths(1)) {
+            YearMonth current = month;
+            //a bucket refreshed by a write while the month is rebuilt makes the rebuild conflict, so it is retried
+            retry(() -> newTransaction.execute(status -> {
+                rebuild(EXPENDITURE, current);
+                rebuild(REQUISITIONS, current);
+                return null;
+            }));
+        }
+        getLogger().info("Backfilled rollups from {} to {} in {} ms", from, to, System.currentTimeMillis() - start);
+    }
+
+    private void rebuild(Rollup.Metric metric, YearMonth month) {
+        rollupRepository.deleteBuckets(metric, month.atDay(1), month.atEndOfMonth());
+
+        List<Rollup> batch = new ArrayList<>(batchSize);
+        Map<Tuple, Money> monthTotals = new LinkedHashMap<>();
+        for (Map.Entry<Tuple, Money> total : sumSourceByDayAndLine(metric, month).entrySet()) {
+            Tuple line = total.getKey();
+            LocalDate day = month.atDay(line.get(4, Integer.class));
+
+            batch.add(createRollup(metric, DAY, day, line, total.getValue()));
+            if (batch.size() >= batchSize) saveBatch(batch);
+
+            monthTotals.merge(lineOf(line), total.getValue(), (m1, m2) -> m1.plus(m2));
+        }
+
+        for (Map.Entry<List<Object>, Money> total : monthTotals.entrySet()) {
+            batch.add(createRollup(metric, MONTH, month.atDay(1), total.getKey(), total.getValue()));
+            if (batch.size() >= batchSize) saveBatch(batch);
+        }
+        saveBatch(batch);
+    }
+
+    private void saveBatch(List<Rollup> batch) {
+        rollupRepository.saveAll(batch);
+        entityManager.flush();
+        entityManager.clear();
+        batch.clear();
+    }
+
+    private void touch(Bucket bucket) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            refreshInNewTransaction(bucket);
+            return;
+        }
+
+        Set<Bucket> touched = (Set<Bucket>) TransactionSynchronizationManager.getResource(TOUCHED_BUCKETS);
+        if (touched == null) {
+            Set<Bucket> buckets = new LinkedHashSet<>();
+            TransactionSynchronizationManager.bindResource(TOUCHED_BUCKETS, buckets);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    buckets.forEach(RollupService.this::refreshInNewTransaction);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(TOUCHED_BUCKETS);
+                }
+            });
+            touched = buckets;
+        }
+        touched.add(bucket);
+    }
+
+    private void refreshInNewTransaction(Bucket bucket) {
+        try {
+            retry(() -> newTransaction.execute(status -> {
+                refresh(bucket);
+                return null;
+            }));
+        } catch (RuntimeException e) {
+            getLogger().warn("Failed to refresh {} rollup bucket of {}, it will be rebuilt by the nightly refresh",
+                    bucket.metric, bucket.day, e);
+        }
+    }
+
+    /**
+     * Run the work again when it lost a race with a concurrent write of the same bucket
+     */
+    private <T> T retry(Supplier<T> work) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return work.get();
+            } catch (ConcurrencyFailureException | DataIntegrityViolationException e) {
+                if (attempt >= REFRESH_ATTEMPTS) throw e;
+                getLogger().debug("Retrying rollup write after conflict on attempt {}", attempt, e);
+            }
+        }
+    }
+
+    private void refresh(Bucket bucket) {
+        save(bucket, DAY, bucket.day, sumSource(bucket));
+
+        LocalDate month = MONTH.bucketOf(bucket.day);
+        Money monthTotal = rollupRepository.sumAmount(bucketPredicate(bucket)
+                .and(rollup.granularity.eq(DAY))
+                .and(rollup.bucketStart.between(month, YearMonth.from(month).atEndOfMonth())));
+        save(bucket, MONTH, month, monthTotal);
+    }
+
+    private void save(Bucket bucket, Rollup.Granularity granularity, LocalDate bucketStart, Money amount) {
+        List<Rollup> found = new ArrayList<>();
+        rollupRepository.findAll(bucketPredicate(bucket)
+                .and(rollup.granularity.eq(granularity))
+                .and(rollup.bucketStart.eq(bucketStart)), rollup.id.asc())
+                .forEach(found::add);
+
+        //duplicates written before the bucket was unique would be counted twice, only the first is kept
+        if (found.size() > 1) rollupRepository.deleteAll(found.subList(1, found.size()));
+
+        Rollup bucketRollup = found.stream()
+                .findFirst()
+                .orElseGet(() -> {
+                    Rollup created = new Rollup();
+                    created.setMetric(bucket.metric);
+                    created.setGranularity(granularity);
+                    created.setBucketStart(bucketStart);
+                    created.setCostCenter(bucket.costCenter);
+                    created.setRole(bucket.role);
+                    created.setResource(bucket.resource);
+                    created.setUser(bucket.user);
+                    return created;
+                });
+
+        bucketRollup.setAmount(amount);
+        rollupRepository.save(bucketRollup);
+    }
+
+    private Money sumSource(Bucket bucket) {
+        LocalDateTime start = bucket.day.atStartOfDay();
+        LocalDateTime end = bucket.day.plusDays(1).atStartOfDay();
+
+        if (bucket.metric == EXPENDITURE) {
+            return expenseRepository.sumActualAmount(new BooleanBuilder()
+                    .and(expense.payment.time.goe(start))
+                    .and(expense.payment.time.lt(end))
+                    .and(expense.budget.costCenter.eq(bucket.costCenter))
+                    .and(expense.role.eq(bucket.role))
+                    .and(expense.resource.eq(bucket.resource))
+                    .and(bucket.user == null ? expense.associatedUser.isNull() : expense.associatedUser.eq(bucket.user)));
+        } else {
+            return requisitionRepository.sumApprovedAmount(new BooleanBuilder()
+                    .and(requisition.timeCreated.goe(start))
+                    .and(requisition.timeCreated.lt(end))
+                    .and(requisition.budget.costCenter.eq(bucket.costCenter))
+                    .and(requisition.role.eq(bucket.role))
+                    .and(requisition.resource.eq(bucket.resource))
+                    .and(requisition.creator.eq(bucket.user)));
+        }
+    }
+
+    /**
+     * @return totals of the month by (cost center id, role id, resource id, user id, day of month)
+     * in a single grouped query
+     */
+    private Map<Tuple, Money> sumSourceByDayAndLine(Rollup.Metric metric, YearMonth month) {
+        LocalDateTime start = month.atDay(1).atStartOfDay();
+        LocalDateTime end = month.plusMonths(1).atDay(1).atStartOfDay();
+
+        if (metric == EXPENDITURE) {
+            return expenseRepository.sumActualAmountBy(
+                    expense.payment.time.goe(start).and(expense.payment.time.lt(end)),
+                    Projections.tuple(expense.budget.costCenter.id, expense.role.id, expense.resource.id,
+                            expense.associatedUser.id, expense.payment.time.dayOfMonth()));
+        } else {
+            return requisitionRepository.sumApprovedAmountBy(
+                    requisition.timeCreated.goe(start).and(requisition.timeCreated.lt(end)),
+                    Projections.tuple(requisition.budget.costCenter.id, requisition.role.id, requisition.resource.id,
+                            requisition.creator.id, requisition.timeCreated.dayOfMonth()));
+        }
+    }
+
+    /**
+     * @return the (cost center id, role id, resource id, user id) of the day total
+     */
+    private List<Object> lineOf(Tuple dayLine) {
+        return Arrays.asList(dayLine.get(0, Object.class), dayLine.get(1, Object.class),
+                dayLine.get(2, Object.class), dayLine.get(3, Object.class));
+    }
+
+    private Rollup createRollup(Rollup.Metric metric, Rollup.Granularity granularity, LocalDate bucketStart, Tuple line, Money amount) {
+        return createRollup(metric, granularity, bucketStart, lineOf(line), amount);
+    }
+
+    private Rollup createRollup(Rollup.Metric metric, Rollup.Granularity granularity, LocalDate bucketStart, List<Object> line, Money amount) {
+        Object userId = line.get(3);
+
+        Rollup created = new Rollup();
+        created.setMetric(metric);
+        created.setGranularity(granularity);
+        created.setBucketStart(bucketStart);
+        created.setCostCenter(entityManager.getReference(CostCenter.class, line.get(0)));
+        created.setRole(entityManager.getReference(Role.class, line.get(1)));
+        created.setResource(entityManager.getReference(Resource.class, line.get(2)));
+        created.setUser(userId == null ? null : entityManager.getReference(User.class, userId));
+        created.setAmount(amount);
+        return created;
+    }
+
+    private BooleanBuilder bucketPredicate(Bucket bucket) {
+        return new BooleanBuilder()
+                .and(rollup.metric.eq(bucket.metric))
+                .and(rollup.costCenter.eq(bucket.costCenter))
+                .and(rollup.role.eq(bucket.role))
+                .and(rollup.resource.eq(bucket.resource))
+                .and(rollup.userKey.eq(Rollup.keyOf(bucket.user)));
+    }
+
+    private YearMonth findFirstMonth() {
+        JPAQueryFactory queryFactory = new JPAQueryFactory(entityManager);
+        LocalDateTime firstPayment = queryFactory.select(expense.payment.time.min()).from(expense).fetchOne();
+        LocalDateTime firstRequisition = queryFactory.select(requisition.timeCreated.min()).from(requisition).fetchOne();
+
+        LocalDateTime first = LocalDateTime.now();
+        if (firstPayment != null && firstPayment.isBefore(first)) first = firstPayment;
+        if (firstRequisition != null && firstRequisition.isBefore(first)) first = firstRequisition;
+        return YearMonth.from(first);
+    }
+
+    @Data
+    private static class Bucket {
+        private final Rollup.Metric metric;
+        private final LocalDate day;
+        private final CostCenter costCenter;
+        private final Role role;
+        private final Resource resource;
+        private final User user;
+    }
+}
@@ -0,0 +1,384 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.core.util.HasLogger;
+import com.niafikra.dimension.plan.domain.Payment;
+import com.niafikra.dimension.plan.domain.QPayment;
+import com.niafikra.dimension.plan.domain.QRequisition;
+import com.niafikra.dimension.plan.domain.Requisition;
+import com.querydsl.core.Tuple;
+import com.querydsl.jpa.impl.JPAQueryFactory;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.LockObtainFailedException;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local full text index of the requisition descriptions and the payment descriptions, associates and references
+ * <p>
+ * Each field is indexed as the lower cased trigrams of its whole text, so the ids found for a criteria are the
+ * rows containing every trigram of the criteria. That is a superset of the rows containing the criteria as indexed
+ * by the last rebuild.
+ * <p>
+ * The index is updated after the saving transaction commits on this instance and rebuilt from the database at
+ * startup and every night. Rows saved by other instances, or whose update failed, are only indexed by the next
+ * rebuild, so the lookups also return the time the last rebuild started (less a margin for clock differences and
+ * transactions committing during the rebuild). The text filters narrow their {@code LIKE '%text%'} to the ids found
+ * or the rows updated since that time, so they return the same rows with or without the index.
+ * The lookups are empty while the index is being (re)built, when the criteria is shorter than a trigram or
+ * matches too many ids, and when no index directory is configured or it is locked by another instance,
+ * the filters then only use LIKE
+ */
+@Service
+public class TextSearchIndex implements InitializingBean, DisposableBean, HasLogger {
+
+    public static final String REQUISITION_DESCRIPTION = "requisitionDescription";
+    public static final String PAYMENT_DESCRIPTION = "paymentDescription";
+    public static final String PAYMENT_ASSOCIATE = "paymentAssociate";
+    public static final String PAYMENT_REFERENCE = "paymentReference";
+
+    private static final String KEY_FIELD = "key";
+    private static final String TYPE_FIELD = "type";
+    private static final String ID_FIELD = "id";
+    private static final String REQUISITION_TYPE = "Requisition";
+    private static final String PAYMENT_TYPE = "Payment";
+    private static final int GRAM_SIZE = 3;
+
+    //must be unique for each instance, the index is disabled when not set
+    @Value("${dimension.text-index.directory:}")
+    private String directory;
+
+    @Value("${dimension.text-index.max-hits:1000}")
+    private int maxHits;
+
+    @Value("${dimension.text-index.rebuild-chunk-size:1000}")
+    private int rebuildChunkSize;
+
+    @Value("${dimension.text-index.change-margin-seconds:300}")
+    private long changeMarginSeconds;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    private final ExecutorService rebuildExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "plan-text-index-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private IndexWriter writer;
+    private SearcherManager searcherManager;
+    private volatile boolean ready;
+
+    //rows updated since are matched by the filters whatever the index holds for them
+    private volatile LocalDateTime changedSince;
+
+    public TextSearchIndex(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if (StringUtils.isBlank(directory)) {
+            getLogger().info("No text index directory is configured, text filters will use LIKE");
+            return;
+        }
+
+        try {
+            writer = new IndexWriter(
+                    FSDirectory.open(Paths.get(directory)),
+                    new IndexWriterConfig().setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND)
+            );
+            searcherManager = new SearcherManager(writer, null);
+        } catch (LockObtainFailedException e) {
+            writer = null;
+            getLogger().warn("Text index directory {} is used by another instance, text filters will use LIKE", directory);
+        } catch (IOException e) {
+            writer = null;
+            getLogger().error("Failed to open the text index at {}, text filters will use LIKE", directory, e);
+        }
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        rebuildExecutor.shutdownNow();
+        if (!isEnabled()) return;
+
+        searcherManager.close();
+        writer.close();
+    }
+
+    public boolean isEnabled() {
+        return searcherManager != null;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Index the requisition once the current transaction commits
+     */
+    public void index(Requisition requisition) {
+        if (!isEnabled()) return;
+
+        Long id = requisition.getId();
+        String description = requisition.getDescription();
+        TransactionCallbacks.afterCommit(() -> update(createRequisitionDocument(id, description)));
+    }
+
+    /**
+     * Index the payment once the current transaction commits
+     */
+    public void index(Payment payment) {
+        if (!isEnabled()) return;
+
+        Long id = payment.getId();
+        String description = payment.getDescription();
+        String associate = payment.getAssociate();
+        String reference = payment.getReference();
+        TransactionCallbacks.afterCommit(() -> update(createPaymentDocument(id, description, associate, reference)));
+    }
+
+    /**
+     * Remove the requisition from the index once the current transaction commits
+     */
+    public void remove(Requisition requisition) {
+        if (!isEnabled()) return;
+
+        String key = key(REQUISITION_TYPE, requisition.getId());
+        TransactionCallbacks.afterCommit(() -> {
+            try {
+                writer.deleteDocuments(new Term(KEY_FIELD, key));
+                searcherManager.maybeRefresh();
+            } catch (IOException e) {
+                getLogger().error("Failed to remove {} from the text index", key, e);
+            }
+        });
+    }
+
+    /**
+     * @return the ids of the requisitions whose description may contain the text, empty when the index can not be used
+     */
+    public Optional<Matches> findRequisitions(String text) {
+        return find(REQUISITION_TYPE, REQUISITION_DESCRIPTION, text);
+    }
+
+    /**
+     * @param field one of {@link #PAYMENT_DESCRIPTION}, {@link #PAYMENT_ASSOCIATE} or {@link #PAYMENT_REFERENCE}
+     * @return the ids of the payments whose field may contain the text, empty when the index can not be used
+     */
+    public Optional<Matches> findPayments(String field, String text) {
+        return find(PAYMENT_TYPE, field, text);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (isEnabled())
+            rebuildExecutor.submit(this::rebuild);
+    }
+
+    /**
+     * Rebuild the whole index from the database, the filters fall back to LIKE until it is done
+     */
+    @Scheduled(cron = "${dimension.text-index.rebuild-cron:0 30 0 * * *}")
+    public synchronized void rebuild() {
+        if (!isEnabled()) return;
+
+        ready = false;
+        long start = System.currentTimeMillis();
+        LocalDateTime rebuildStart = LocalDateTime.now().minusSeconds(changeMarginSeconds);
+        try {
+            writer.deleteAll();
+            long requisitions = indexAll(REQUISITION_TYPE);
+            long payments = indexAll(PAYMENT_TYPE);
+            writer.commit();
+            searcherManager.maybeRefresh();
+            changedSince = rebuildStart;
+            ready = true;
+
+            getLogger().info("Rebuilt text index of {} requisitions and {} payments in {} ms",
+                    requisitions, payments, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            getLogger().error("Failed to rebuild the text index, text filters will keep using LIKE", e);
+        }
+    }
+
+    private long indexAll(String type) throws IOException {
+        long count = 0;
+        Long lastId = 0L;
+        List<Document> documents;
+        do {
+            Long afterId = lastId;
+            documents = transactionTemplate.execute(status ->
+                    REQUISITION_TYPE.equals(type) ? loadRequisitions(afterId) : loadPayments(afterId));
+
+            //keyed like the live updates so an entity saved during the rebuild is not indexed twice
+            for (Document document : documents)
+                writer.updateDocument(new Term(KEY_FIELD, document.get(KEY_FIELD)), document);
+            count += documents.size();
+            if (!documents.isEmpty())
+                lastId = documents.get(documents.size() - 1).getField(ID_FIELD).numericValue().longValue();
+        } while (documents.size() == rebuildChunkSize);
+
+        return count;
+    }
+
+    private List<Document> loadRequisitions(Long afterId) {
+        QRequisition requisition = QRequisition.requisition;
+        List<Tuple> rows = new JPAQueryFactory(entityManager)
+                .select(requisition.id, requisition.description)
+                .from(requisition)
+                .where(requisition.id.gt(afterId))
+                .orderBy(requisition.id.asc())
+                .limit(rebuildChunkSize)
+                .fetch();
+
+        List<Document> documents = new ArrayList<>(rows.size());
+        for (Tuple row : rows)
+            documents.add(createRequisitionDocument(row.get(requisition.id), row.get(requisition.description)));
+        return documents;
+    }
+
+    private List<Document> loadPayments(Long afterId) {
+        QPayment payment = QPayment.payment;
+        List<Tuple> rows = new JPAQueryFactory(entityManager)
+                .select(payment.id, payment.description, payment.associate, payment.reference)
+                .from(payment)
+                .where(payment.id.gt(afterId))
+                .orderBy(payment.id.asc())
+                .limit(rebuildChunkSize)
+                .fetch();
+
+        List<Document> documents = new ArrayList<>(rows.size());
+        for (Tuple row : rows)
+            documents.add(createPaymentDocument(
+                    row.get(payment.id),
+                    row.get(payment.description),
+                    row.get(payment.associate),
+                    row.get(payment.reference)));
+        return documents;
+    }
+
+    private Optional<Matches> find(String type, String field, String text) {
+        if (!ready) return Optional.empty();
+        LocalDateTime since = changedSince;
+
+        Set<String> grams = grams(text);
+        if (grams.isEmpty()) return Optional.empty();
+
+        BooleanQuery.Builder query = new BooleanQuery.Builder()
+                .add(new TermQuery(new Term(TYPE_FIELD, type)), BooleanClause.Occur.FILTER);
+        grams.forEach(gram -> query.add(new TermQuery(new Term(field, gram)), BooleanClause.Occur.FILTER));
+
+        try {
+            IndexSearcher searcher = searcherManager.acquire();
+            try {
+                //one more than the maximum to know when there are too many matches for an IN clause
+                TopDocs hits = searcher.search(query.build(), maxHits + 1);
+                if (hits.scoreDocs.length > maxHits) return Optional.empty();
+
+                Set<Long> ids = new HashSet<>();
+                for (ScoreDoc hit : hits.scoreDocs)
+                    ids.add(searcher.doc(hit.doc).getField(ID_FIELD).numericValue().longValue());
+                return Optional.of(new Matches(ids, since));
+            } finally {
+                searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            getLogger().error("Failed to search the text index for {}", text, e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Lower cased trigrams of the whole text including spaces, none when the text is shorter than a trigram
+     */
+    private static Set<String> grams(String text) {
+        String lowerCase = text.toLowerCase(Locale.ROOT);
+        Set<String> grams = new LinkedHashSet<>();
+        for (int i = 0; i + GRAM_SIZE <= lowerCase.length(); i++)
+            grams.add(lowerCase.substring(i, i + GRAM_SIZE));
+        return grams;
+    }
+
+    private void update(Document document) {
+        String key = document.get(KEY_FIELD);
+        try {
+            writer.updateDocument(new Term(KEY_FIELD, key), document);
+            searcherManager.maybeRefresh();
+        } catch (IOException e) {
+            getLogger().error("Failed to update {} in the text index", key, e);
+        }
+    }
+
+    private static Document createRequisitionDocument(Long id, String description) {
+        Document document = createDocument(REQUISITION_TYPE, id);
+        addText(document, REQUISITION_DESCRIPTION, description);
+        return document;
+    }
+
+    private static Document createPaymentDocument(Long id, String description, String associate, String reference) {
+        Document document = createDocument(PAYMENT_TYPE, id);
+        addText(document, PAYMENT_DESCRIPTION, description);
+        addText(document, PAYMENT_ASSOCIATE, associate);
+        addText(document, PAYMENT_REFERENCE, reference);
+        return document;
+    }
+
+    private static Document createDocument(String type, Long id) {
+        Document document = new Document();
+        document.add(new StringField(KEY_FIELD, key(type, id), Field.Store.YES));
+        document.add(new StringField(TYPE_FIELD, type, Field.Store.NO));
+        document.add(new StoredField(ID_FIELD, id));
+        return document;
+    }
+
+    private static void addText(Document document, String field, String text) {
+        if (StringUtils.isBlank(text)) return;
+
+        for (String gram : grams(text))
+            document.add(new StringField(field, gram, Field.Store.NO));
+    }
+
+    private static String key(String type, Long id) {
+        return type + ":" + id;
+    }
+
+    /**
+     * Ids of the rows which may contain the text, rows updated since {@link #getChangedSince()} may be missing
+     * from the ids and have to be matched as well
+     */
+    @Getter
+    @AllArgsConstructor
+    public static class Matches {
+        private final Set<Long> ids;
+        private final LocalDateTime changedSince;
+    }
+}
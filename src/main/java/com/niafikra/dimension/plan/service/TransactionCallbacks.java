@@ -0,0 +1,48 @@
+package com.niafikra.dimension.plan.service;
+
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Helpers for running work once the current transaction has finished
+ */
+public final class TransactionCallbacks {
+
+    private TransactionCallbacks() {
+    }
+
+    /**
+     * Run the action after the current transaction commits, or immediately when there is no transaction
+     */
+    public static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * Run the action when the current transaction completes whether committed or rolled back,
+     * or immediately when there is no transaction
+     */
+    public static void afterCompletion(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                action.run();
+            }
+        });
+    }
+}
@@ -8,20 +8,16 @@ import com.niafikra.dimension.approval.domain.Strategy
 import com.niafikra.dimension.approval.service.StrategyService
 import com.niafikra.dimension.plan.domain.AllocationAdjustment
 import com.niafikra.dimension.plan.domain.Budget
+import com.niafikra.dimension.plan.service.ApprovalStrategyResolver
 
 // return [] as Set
 //ApplicationContext applicationContext;
 
 StrategyService strategyService = applicationContext.getBean(StrategyService)
+ApprovalStrategyResolver strategyResolver = applicationContext.getBean(ApprovalStrategyResolver)
 AllocationAdjustment adjustment = approvable;
 Budget budget = adjustment.budget
 
-String costCenterName = budget.getCostCenter().getName()
-costCenterName = costCenterName.trim().replaceAll(" ", "")
-String strategyName = costCenterName + "Flow";
-
-Strategy strategy = strategyService.getStrategy(strategyName)
-if (strategy == null)
-    strategy = strategyService.getStrategy("GeneralBudgetFlow")
+Strategy strategy = strategyResolver.getBudgetStrategy(budget.getCostCenter())
 
 return strategyService.getNextApprovers(tracker,strategy)
\ No newline at end of file
@@ -3,19 +3,15 @@ package script
 import com.niafikra.dimension.approval.domain.Strategy
 import com.niafikra.dimension.approval.service.StrategyService
 import com.niafikra.dimension.plan.domain.Budget
+import com.niafikra.dimension.plan.service.ApprovalStrategyResolver
 
 // return [] as Set
 //ApplicationContext applicationContext;
 
 StrategyService strategyService = applicationContext.getBean(StrategyService)
+ApprovalStrategyResolver strategyResolver = applicationContext.getBean(ApprovalStrategyResolver)
 Budget budget = approvable;
 
-String costCenterName = budget.getCostCenter().getName()
-costCenterName = costCenterName.trim().replaceAll(" ", "")
-String strategyName = costCenterName + "Flow";
-
-Strategy strategy = strategyService.getStrategy(strategyName)
-if (strategy == null)
-    strategy = strategyService.getStrategy("GeneralBudgetFlow")
+Strategy strategy = strategyResolver.getBudgetStrategy(budget.getCostCenter())
 
 return strategyService.getNextApprovers(tracker,strategy)
\ No newline at end of file
@@ -2,10 +2,11 @@ package script
 
 import com.niafikra.dimension.approval.domain.Strategy
 import com.niafikra.dimension.approval.service.StrategyService
+import com.niafikra.dimension.plan.service.ApprovalStrategyResolver
 
 // return [] as Set
 // ApplicationContext applicationContext;
 
 StrategyService strategyService = applicationContext.getBean(StrategyService)
-Strategy strategy = strategyService.getStrategy("RequisitionSampleFlow")
+Strategy strategy = applicationContext.getBean(ApprovalStrategyResolver).getStrategy("RequisitionSampleFlow")
 return strategyService.getNextApprovers(tracker,strategy)
\ No newline at end of file
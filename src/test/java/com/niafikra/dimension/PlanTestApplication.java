@@ -0,0 +1,11 @@
+package com.niafikra.dimension;
+
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+
+/**
+ * Application the plan tests run in, placed in the root package so that the entities and repositories
+ * of the plan and of the libraries it depends on are all picked up against the in memory database
+ */
+@SpringBootApplication
+public class PlanTestApplication {
+}
@@ -0,0 +1,255 @@
+package com.niafikra.dimension.plan;
+
+import com.niafikra.dimension.category.domain.Category;
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.domain.*;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Creates and commits the rows the plan tests run against, every call is committed in its own transaction
+ * so that the data is visible to the services and to concurrent threads
+ */
+@Component
+public class PlanFixtures {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    private TransactionTemplate transactionTemplate;
+
+    public PlanFixtures(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    public static Money money(String amount) {
+        return new Money(new BigDecimal(amount));
+    }
+
+    /**
+     * Money is compared by value so that totals computed with different scales are equal
+     */
+    public static void assertSameAmount(Money expected, Money actual) {
+        assertEquals(0, expected.getAmount().compareTo(actual.getAmount()),
+                () -> "Expected " + expected + " but was " + actual);
+    }
+
+    public <T> T persist(T entity) {
+        return transactionTemplate.execute(status -> {
+            entityManager.persist(entity);
+            return entity;
+        });
+    }
+
+    public User createUser() {
+        String name = unique("user");
+
+        User user = new User();
+        user.setName(name);
+        user.setLoginId(name);
+        return persist(user);
+    }
+
+    public Role createRole(User... members) {
+        return createRole(Collections.emptySet(), members);
+    }
+
+    public Role createRole(Collection<Resource> resources, User... members) {
+        Role role = new Role();
+        role.setName(unique("role"));
+        role.setUsers(new LinkedHashSet<>(Arrays.asList(members)));
+        role.setResources(new LinkedHashSet<>(resources));
+        return persist(role);
+    }
+
+    public Resource createResource() {
+        Category category = new Category();
+        category.setName(unique("category"));
+        category.setType(Resource.CATEGORY_TYPE);
+        persist(category);
+
+        Resource resource = new Resource(category);
+        resource.setName(unique("resource"));
+        return persist(resource);
+    }
+
+    public CostCenter createCostCenter(Role... roles) {
+        return createCostCenter(Collections.emptySet(), Collections.emptySet(), roles);
+    }
+
+    public CostCenter createCostCenter(Set<User> planners, Role... roles) {
+        return createCostCenter(planners, Collections.emptySet(), roles);
+    }
+
+    public CostCenter createCostCenter(Set<User> planners, Collection<Resource> resources, Role... roles) {
+        CostCenter costCenter = new CostCenter();
+        costCenter.setName(unique("cost center"));
+        costCenter.getRoles().addAll(Arrays.asList(roles));
+        costCenter.getResources().addAll(resources);
+        costCenter.getPlanners().addAll(planners);
+        return persist(costCenter);
+    }
+
+    /**
+     * An approved budget running from last month to next month
+     */
+    public Budget createBudget(CostCenter costCenter, User creator, Money fund) {
+        return createBudget(costCenter, creator, fund, true);
+    }
+
+    /**
+     * A budget still being planned, running from last month to next month
+     */
+    public Budget createDraftBudget(CostCenter costCenter, User creator, Money fund) {
+        return createBudget(costCenter, creator, fund, null);
+    }
+
+    /**
+     * Mark the budget approved as the completion of its approval would
+     */
+    public Budget approve(Budget budget) {
+        return transactionTemplate.execute(status -> {
+            Budget loaded = entityManager.find(Budget.class, budget.getId());
+            loaded.setApproved(true);
+            return loaded;
+        });
+    }
+
+    /**
+     * Run the action in the current thread as the user
+     */
+    public void runAs(User user, Runnable action) {
+        SecurityContextHolder.getContext().setAuthentication(
+                new UsernamePasswordAuthenticationToken(user.getLoginId(), null, Collections.emptyList()));
+        try {
+            action.run();
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+    public Allocation createAllocation(Budget budget, Role role, Resource resource, User creator,
+                                       Money proposed, Money allocated) {
+        Allocation allocation = new Allocation(budget, role, resource, proposed);
+        allocation.setAllocatedAmount(allocated);
+        allocation.setCreator(creator);
+        return persist(allocation);
+    }
+
+    public PaymentMethod createPaymentMethod() {
+        PaymentMethod method = new PaymentMethod();
+        method.setName(unique("method"));
+        return persist(method);
+    }
+
+    public Payment createPayment(PaymentMethod method, User creator, Money amount, LocalDateTime time) {
+        Payment payment = new Payment(creator.getName(), amount, true);
+        payment.setMethod(method);
+        payment.setCreator(creator);
+        payment.setTime(time);
+        payment.setDescription("Test payment");
+        return persist(payment);
+    }
+
+    public Expense createExpense(Budget budget, Role role, Resource resource, User user, Payment payment) {
+        Expense expense = new Expense(budget, role, resource, user, null);
+        expense.setPayment(payment);
+        return persist(expense);
+    }
+
+    /**
+     * Retire the expense with accepted retirement entries of the amounts
+     */
+    public Expense retire(Expense expense, boolean reconciled, Money... amounts) {
+        return transactionTemplate.execute(status -> {
+            Set<RetirementEntry> entries = new LinkedHashSet<>();
+            for (Money amount : amounts) {
+                RetirementEntry entry = new RetirementEntry(amount, "Test retirement", new LinkedHashSet<>());
+                entry.setAccepted(true);
+                entityManager.persist(entry);
+                entries.add(entry);
+            }
+
+            expense.setRetirementEntries(entries);
+            expense.setReconciled(reconciled);
+            return entityManager.merge(expense);
+        });
+    }
+
+    /**
+     * Record the expense as a payment of the requisition
+     */
+    public Requisition addExpense(Requisition requisition, Expense expense) {
+        return transactionTemplate.execute(status -> {
+            Requisition merged = entityManager.merge(requisition);
+            merged.addExpense(entityManager.merge(expense));
+            return merged;
+        });
+    }
+
+    /**
+     * A requisition approved for its full requested amount, or waiting for approval when not approved
+     */
+    public Requisition createRequisition(Budget budget, Role role, Resource resource, User creator,
+                                         Money requested, boolean approved) {
+        Requisition requisition = new Requisition(budget, role, resource, null, creator, requested,
+                "Test requisition", new LinkedHashSet<>());
+        if (approved) {
+            requisition.setApproved(true);
+            requisition.setApprovedAmount(requested);
+        }
+        return persist(requisition);
+    }
+
+    /**
+     * An approved budget which ended on the date, already archived or not
+     */
+    public Budget createEndedBudget(CostCenter costCenter, User creator, LocalDate endDate, boolean archived) {
+        Budget budget = new Budget();
+        budget.setTitle(unique("budget"));
+        budget.setStartDate(endDate.minusYears(1));
+        budget.setEndDate(endDate);
+        budget.setCostCenter(costCenter);
+        budget.setCreator(creator);
+        budget.setApproved(true);
+        budget.setArchived(archived);
+        budget.setFund(Money.getZERO());
+        budget.setCost(Money.getZERO());
+        return persist(budget);
+    }
+
+    private Budget createBudget(CostCenter costCenter, User creator, Money fund, Boolean approved) {
+        Budget budget = new Budget();
+        budget.setTitle(unique("budget"));
+        budget.setStartDate(LocalDate.now().minusMonths(1));
+        budget.setEndDate(LocalDate.now().plusMonths(1));
+        budget.setCostCenter(costCenter);
+        budget.setCreator(creator);
+        budget.setApproved(approved);
+        budget.setFund(fund);
+        budget.setCost(fund);
+        return persist(budget);
+    }
+
+    private static String unique(String prefix) {
+        return prefix + " " + UUID.randomUUID();
+    }
+}
@@ -0,0 +1,81 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.PlanFixtures;
+import com.niafikra.dimension.plan.domain.*;
+import com.niafikra.dimension.plan.service.AllocationService;
+import com.querydsl.core.types.Predicate;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.*;
+import java.util.function.Function;
+
+import static com.niafikra.dimension.plan.PlanFixtures.assertSameAmount;
+import static com.niafikra.dimension.plan.PlanFixtures.money;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the allocation totals summed by the database with summing the loaded allocations
+ */
+@SpringBootTest
+class AllocationRepositoryTest {
+
+    private static final QAllocation allocation = QAllocation.allocation;
+
+    @Autowired
+    private AllocationRepository allocationRepository;
+
+    @Autowired
+    private AllocationService allocationService;
+
+    @Autowired
+    private PlanFixtures fixtures;
+
+    private Budget budget;
+    private List<Role> roles;
+
+    @BeforeEach
+    void createAllocations() {
+        User user = fixtures.createUser();
+        roles = Arrays.asList(fixtures.createRole(), fixtures.createRole(), fixtures.createRole());
+        budget = fixtures.createBudget(fixtures.createCostCenter(roles.toArray(new Role[0])), user, money("1000000"));
+
+        //the last role has no allocations
+        for (int r = 0; r < 2; r++) {
+            for (int i = 1; i <= 5; i++) {
+                fixtures.createAllocation(budget, roles.get(r), fixtures.createResource(), user,
+                        money((r + 1) + "" + i + ".25"), money(i + ".5"));
+            }
+        }
+    }
+
+    @Test
+    void sumsMatchLoadedAllocations() {
+        Predicate query = allocation.budget.eq(budget);
+        List<Allocation> loaded = allocationService.getAllocations(budget, null, null);
+
+        assertSameAmount(sum(loaded, Allocation::getProposedAmount), allocationRepository.sumProposedAmount(query));
+        assertSameAmount(sum(loaded, Allocation::getAllocatedAmount), allocationRepository.sumAllocatedAmount(query));
+    }
+
+    @Test
+    void groupedSumsMatchLoadedAllocations() {
+        Map<Long, Money> allocated = allocationRepository.sumAllocatedAmountBy(allocation.budget.eq(budget), allocation.role.id);
+
+        //roles without allocations are absent
+        assertEquals(2, allocated.size());
+        for (Role role : roles.subList(0, 2)) {
+            assertSameAmount(
+                    sum(allocationService.getAllocations(budget, role, null), Allocation::getAllocatedAmount),
+                    allocated.get(role.getId()));
+        }
+    }
+
+    private static Money sum(Collection<Allocation> allocations, Function<Allocation, Money> amount) {
+        return allocations.stream().map(amount).reduce(Money.getZERO(), Money::plus);
+    }
+}
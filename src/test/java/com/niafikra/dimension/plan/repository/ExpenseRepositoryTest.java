@@ -0,0 +1,80 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.PlanFixtures;
+import com.niafikra.dimension.plan.domain.*;
+import com.querydsl.core.types.Predicate;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static com.niafikra.dimension.plan.PlanFixtures.assertSameAmount;
+import static com.niafikra.dimension.plan.PlanFixtures.money;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the actual amounts summed by the database with {@link Expense#getActualAmount()} of the loaded expenses
+ */
+@SpringBootTest
+class ExpenseRepositoryTest {
+
+    private static final QExpense expense = QExpense.expense;
+
+    @Autowired
+    private ExpenseRepository expenseRepository;
+
+    @Autowired
+    private PlanFixtures fixtures;
+
+    private Budget budget;
+    private List<Role> roles;
+
+    @BeforeEach
+    void createExpenses() {
+        User user = fixtures.createUser();
+        Resource resource = fixtures.createResource();
+        PaymentMethod method = fixtures.createPaymentMethod();
+        roles = Arrays.asList(fixtures.createRole(user), fixtures.createRole(user));
+        budget = fixtures.createBudget(fixtures.createCostCenter(roles.toArray(new Role[0])), user, money("1000000"));
+
+        for (Role role : roles) {
+            for (int i = 1; i <= 4; i++) {
+                Payment payment = fixtures.createPayment(method, user, money(i + "00.10"), LocalDateTime.now());
+                Expense paid = fixtures.createExpense(budget, role, resource, user, payment);
+
+                //reconciled expenses count their retirements, retirements of unreconciled ones are ignored
+                if (i == 2) fixtures.retire(paid, true, money("40.05"), money("30"));
+                if (i == 3) fixtures.retire(paid, false, money("250"));
+            }
+        }
+    }
+
+    @Test
+    void actualAmountMatchesLoadedExpenses() {
+        Predicate query = expense.budget.eq(budget);
+
+        assertSameAmount(sum(expenseRepository.findAll(query)), expenseRepository.sumActualAmount(query));
+    }
+
+    @Test
+    void groupedActualAmountMatchesLoadedExpenses() {
+        Map<Long, Money> byRole = expenseRepository.sumActualAmountBy(expense.budget.eq(budget), expense.role.id);
+
+        assertEquals(roles.size(), byRole.size());
+        for (Role role : roles) {
+            Predicate query = expense.budget.eq(budget).and(expense.role.eq(role));
+            assertSameAmount(sum(expenseRepository.findAll(query)), byRole.get(role.getId()));
+        }
+    }
+
+    private static Money sum(Iterable<Expense> expenses) {
+        Money total = Money.getZERO();
+        for (Expense loaded : expenses) total = total.plus(loaded.getActualAmount());
+        return total;
+    }
+}
@@ -0,0 +1,120 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.plan.PlanFixtures;
+import com.niafikra.dimension.plan.domain.*;
+import com.querydsl.core.types.Predicate;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static com.niafikra.dimension.plan.PlanFixtures.money;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares reading requisitions and expenses page by page past the cursor with loading all of them in the same order
+ */
+@SpringBootTest
+class KeysetPageTest {
+
+    private static final int ROWS = 23;
+    private static final int PAGE_SIZE = 5;
+
+    private static final QRequisition requisition = QRequisition.requisition;
+    private static final QExpense expense = QExpense.expense;
+
+    @Autowired
+    private RequisitionRepository requisitionRepository;
+
+    @Autowired
+    private ExpenseRepository expenseRepository;
+
+    @Autowired
+    private PlanFixtures fixtures;
+
+    private Budget budget;
+
+    @BeforeEach
+    void createRows() {
+        User user = fixtures.createUser();
+        Resource resource = fixtures.createResource();
+        Role role = fixtures.createRole(user);
+        PaymentMethod method = fixtures.createPaymentMethod();
+        budget = fixtures.createBudget(fixtures.createCostCenter(role), user, money("1000000"));
+
+        for (int i = 1; i <= ROWS; i++) {
+            fixtures.createRequisition(budget, role, resource, user, money(i + "0"), i % 3 != 0);
+            Payment payment = fixtures.createPayment(method, user, money(i + "0"), LocalDateTime.now());
+            fixtures.createExpense(budget, role, resource, user, payment);
+        }
+    }
+
+    @Test
+    void requisitionPagesMatchOrderedRequisitions() {
+        Predicate query = requisition.budget.eq(budget);
+
+        List<Long> expected = new ArrayList<>();
+        requisitionRepository.findAll(query, requisition.timeCreated.desc(), requisition.id.desc())
+                .forEach(row -> expected.add(row.getId()));
+
+        assertEquals(expected, readAll(cursor -> requisitionRepository.findPage(query, cursor, PAGE_SIZE, cursor == null),
+                Requisition::getId));
+    }
+
+    @Test
+    void expensePagesMatchOrderedExpenses() {
+        Predicate query = expense.budget.eq(budget);
+
+        List<Long> expected = new ArrayList<>();
+        expenseRepository.findAll(query, expense.payment.timeCreated.desc(), expense.id.desc())
+                .forEach(row -> expected.add(row.getId()));
+
+        assertEquals(expected, readAll(cursor -> expenseRepository.findPage(query, cursor, PAGE_SIZE, cursor == null),
+                Expense::getId));
+    }
+
+    @Test
+    void pageIsNotShiftedByNewerRows() {
+        Predicate query = requisition.budget.eq(budget);
+
+        KeysetPage<Requisition> first = requisitionRepository.findPage(query, null, PAGE_SIZE, false);
+        KeysetPage<Requisition> second = requisitionRepository.findPage(query, first.getNextCursor(), PAGE_SIZE, false);
+
+        Requisition newest = requisitionRepository.findAll(query, requisition.id.desc()).iterator().next();
+        fixtures.createRequisition(budget, newest.getRole(), newest.getResource(), newest.getCreator(), money("10"), true);
+
+        assertEquals(ids(second), ids(requisitionRepository.findPage(query, first.getNextCursor(), PAGE_SIZE, false)));
+    }
+
+    /**
+     * Follow the cursors from the first page to the last, checking the sizes and total on the way
+     */
+    private static <T> List<Long> readAll(Function<String, KeysetPage<T>> pageAfter, Function<T, Long> idOf) {
+        List<Long> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            KeysetPage<T> page = pageAfter.apply(cursor);
+            if (cursor == null) assertEquals(Long.valueOf(ROWS), page.getTotal());
+            else assertNull(page.getTotal());
+
+            assertTrue(page.getContent().size() <= PAGE_SIZE);
+            page.getContent().forEach(row -> ids.add(idOf.apply(row)));
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+
+        assertEquals(ROWS, ids.size());
+        return ids;
+    }
+
+    private static List<Long> ids(KeysetPage<Requisition> page) {
+        List<Long> ids = new ArrayList<>();
+        page.getContent().forEach(row -> ids.add(row.getId()));
+        return ids;
+    }
+}
@@ -0,0 +1,87 @@
+package com.niafikra.dimension.plan.repository;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.PlanFixtures;
+import com.niafikra.dimension.plan.domain.*;
+import com.querydsl.core.types.Predicate;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static com.niafikra.dimension.plan.PlanFixtures.assertSameAmount;
+import static com.niafikra.dimension.plan.PlanFixtures.money;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the pending amounts summed by the database with {@link Requisition#getPendingAmount()} of the loaded requisitions
+ */
+@SpringBootTest
+class RequisitionRepositoryTest {
+
+    private static final QRequisition requisition = QRequisition.requisition;
+
+    @Autowired
+    private RequisitionRepository requisitionRepository;
+
+    @Autowired
+    private PlanFixtures fixtures;
+
+    private Budget budget;
+    private List<Role> roles;
+
+    @BeforeEach
+    void createRequisitions() {
+        User user = fixtures.createUser();
+        Resource resource = fixtures.createResource();
+        PaymentMethod method = fixtures.createPaymentMethod();
+        roles = Arrays.asList(fixtures.createRole(user), fixtures.createRole(user));
+        budget = fixtures.createBudget(fixtures.createCostCenter(roles.toArray(new Role[0])), user, money("1000000"));
+
+        for (Role role : roles) {
+            for (int i = 1; i <= 4; i++) {
+                Requisition approved = fixtures.createRequisition(budget, role, resource, user, money(i + "00.50"), true);
+
+                //unpaid, partly paid and fully paid in two payments
+                for (int p = 1; p < i; p++) {
+                    Payment payment = fixtures.createPayment(method, user, money(i + "0.25"), LocalDateTime.now());
+                    Expense expense = fixtures.createExpense(budget, role, resource, user, payment);
+                    approved = fixtures.addExpense(approved, expense);
+                }
+            }
+        }
+    }
+
+    @Test
+    void pendingAmountMatchesLoadedRequisitions() {
+        Predicate query = requisition.budget.eq(budget).and(requisition.approved.isTrue());
+
+        assertSameAmount(sum(requisitionRepository.findAll(query)), requisitionRepository.sumPendingAmount(query));
+    }
+
+    @Test
+    void groupedPendingAmountMatchesLoadedRequisitions() {
+        Predicate query = requisition.budget.eq(budget).and(requisition.approved.isTrue());
+        Map<Long, Money> byRole = requisitionRepository.sumPendingAmountBy(query, requisition.role.id);
+
+        assertEquals(roles.size(), byRole.size());
+        for (Role role : roles) {
+            Predicate roleQuery = requisition.budget.eq(budget)
+                    .and(requisition.approved.isTrue())
+                    .and(requisition.role.eq(role));
+            assertSameAmount(sum(requisitionRepository.findAll(roleQuery)), byRole.get(role.getId()));
+        }
+    }
+
+    private static Money sum(Iterable<Requisition> requisitions) {
+        Money total = Money.getZERO();
+        for (Requisition loaded : requisitions) total = total.plus(loaded.getPendingAmount());
+        return total;
+    }
+}
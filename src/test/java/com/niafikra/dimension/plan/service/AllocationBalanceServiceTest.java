@@ -0,0 +1,226 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.PlanFixtures;
+import com.niafikra.dimension.plan.domain.*;
+import com.niafikra.dimension.plan.repository.AllocationRepository;
+import com.niafikra.dimension.plan.repository.ExpenseRepository;
+import com.niafikra.dimension.plan.repository.RequisitionRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import static com.niafikra.dimension.plan.PlanFixtures.assertSameAmount;
+import static com.niafikra.dimension.plan.PlanFixtures.money;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the ledger with the totals of each budget line summed over the loaded source rows, and the ledger kept
+ * up to date by the services with the ledger rebuilt from the source rows
+ */
+@SpringBootTest
+class AllocationBalanceServiceTest {
+
+    @Autowired
+    private AllocationBalanceService balanceService;
+
+    @Autowired
+    private AllocationService allocationService;
+
+    @Autowired
+    private ExpenseService expenseService;
+
+    @Autowired
+    private RequisitionService requisitionService;
+
+    @Autowired
+    private AllocationRepository allocationRepository;
+
+    @Autowired
+    private ExpenseRepository expenseRepository;
+
+    @Autowired
+    private RequisitionRepository requisitionRepository;
+
+    @Autowired
+    private PlanFixtures fixtures;
+
+    private User user;
+    private PaymentMethod method;
+    private CostCenter costCenter;
+    private List<Role> roles = new ArrayList<>();
+    private List<Resource> resources = new ArrayList<>();
+
+    @BeforeEach
+    void createLines() {
+        user = fixtures.createUser();
+        method = fixtures.createPaymentMethod();
+        for (int i = 0; i < 2; i++) resources.add(fixtures.createResource());
+        for (int i = 0; i < 2; i++) roles.add(fixtures.createRole(resources, user));
+        costCenter = fixtures.createCostCenter(Collections.singleton(user), resources, roles.toArray(new Role[0]));
+    }
+
+    @Test
+    void rebuildMatchesSourceRows() {
+        Budget budget = fixtures.createBudget(costCenter, user, money("1000000"));
+
+        int line = 0;
+        for (Role role : roles) {
+            for (Resource resource : resources) {
+                line++;
+                fixtures.createAllocation(budget, role, resource, user, money(line + "000"), money(line + "00"));
+
+                Payment payment = fixtures.createPayment(method, user, money(line + "0.50"), LocalDateTime.now());
+                Expense expense = fixtures.createExpense(budget, role, resource, user, payment);
+                if (line % 2 == 0) fixtures.retire(expense, true, money(line + "5"));
+
+                fixtures.createRequisition(budget, role, resource, user, money(line + "20"), true);
+                fixtures.createRequisition(budget, role, resource, user, money(line + "30"), true);
+                fixtures.createRequisition(budget, role, resource, user, money(line + "40"), false);
+            }
+        }
+
+        assertEquals(roles.size() * resources.size(), balanceService.rebuild(budget));
+
+        for (Role role : roles) {
+            for (Resource resource : resources) {
+                AllocationBalance balance = balanceService.getBalance(budget, role, resource);
+
+                List<Allocation> allocations = new ArrayList<>();
+                allocationRepository.findAll(QAllocation.allocation.budget.eq(budget)
+                        .and(QAllocation.allocation.role.eq(role))
+                        .and(QAllocation.allocation.resource.eq(resource))).forEach(allocations::add);
+                assertSameAmount(sum(allocations, Allocation::getProposedAmount), balance.getProposed());
+                assertSameAmount(sum(allocations, Allocation::getAllocatedAmount), balance.getAllocated());
+
+                List<Expense> expenses = new ArrayList<>();
+                expenseRepository.findAll(QExpense.expense.budget.eq(budget)
+                        .and(QExpense.expense.role.eq(role))
+                        .and(QExpense.expense.resource.eq(resource))).forEach(expenses::add);
+                assertSameAmount(sum(expenses, Expense::getActualAmount), balance.getExpended());
+
+                List<Requisition> requisitions = new ArrayList<>();
+                requisitionRepository.findAll(QRequisition.requisition.budget.eq(budget)
+                        .and(QRequisition.requisition.role.eq(role))
+                        .and(QRequisition.requisition.resource.eq(resource))).forEach(requisitions::add);
+                assertSameAmount(
+                        sumPending(requisitions, requisition -> requisition.isApproved() && !requisition.isFulfilled()),
+                        balance.getPendingPayment());
+                assertSameAmount(
+                        sumPending(requisitions, requisition -> requisition.getApproved() == null),
+                        balance.getPendingApproval());
+            }
+        }
+    }
+
+    /**
+     * Goes through the services which apply their changes to the ledger and checks the ledger after each step
+     * against rebuilding it from the source rows
+     */
+    @Test
+    void serviceUpdatesMatchRebuild() {
+        Budget draft = fixtures.createDraftBudget(costCenter, user, money("1000000"));
+
+        fixtures.runAs(user, () -> {
+            int line = 0;
+            for (Role role : roles) {
+                for (Resource resource : resources) {
+                    line++;
+                    allocationService.propose(draft, role, resource, money(line + "0000.25"), "Line " + line, "Test ledger");
+                }
+            }
+        });
+        assertLedgerMatchesRebuild(draft);
+
+        Budget budget = fixtures.approve(draft);
+        allocationService.allocate(budget);
+
+        List<Expense> retired = new ArrayList<>();
+        fixtures.runAs(user, () -> {
+            int line = 0;
+            for (Role role : roles) {
+                for (Resource resource : resources) {
+                    line++;
+                    expenseService.create(new Expense(budget, role, resource, user, null), newPayment(money(line + "00.50"), true));
+                    retired.add(fixtures.retire(
+                            expenseService.create(new Expense(budget, role, resource, user, null), newPayment(money(line + "10"), true)),
+                            false, money(line + "10")));
+                    retired.add(fixtures.retire(
+                            expenseService.create(new Expense(budget, role, resource, user, null), newPayment(money(line + "20"), true)),
+                            false, money(line + "5")));
+                }
+            }
+        });
+        assertLedgerMatchesRebuild(budget);
+
+        fixtures.runAs(user, () -> {
+            for (Expense expense : retired) {
+                //retired in full are reconciled as they are, the others once their difference is returned
+                if (expense.getRetiredDifference().isZero()) expenseService.markReconciled(expense);
+                else expenseService.settle(expense, newPayment(expense.getPendingSettlement(), false));
+            }
+        });
+        assertLedgerMatchesRebuild(budget);
+
+        fixtures.runAs(user, () -> {
+            int line = 0;
+            for (Role role : roles) {
+                for (Resource resource : resources) {
+                    line++;
+                    Requisition paid = requisitionService.update(
+                            fixtures.createRequisition(budget, role, resource, user, money(line + "30"), true));
+                    requisitionService.update(fixtures.createRequisition(budget, role, resource, user, money(line + "40"), true));
+                    requisitionService.update(fixtures.createRequisition(budget, role, resource, user, money(line + "50"), false));
+
+                    requisitionService.pay(paid, newPayment(money(line + "5"), true), UUID.randomUUID().toString());
+                }
+            }
+        });
+        assertLedgerMatchesRebuild(budget);
+    }
+
+    private void assertLedgerMatchesRebuild(Budget budget) {
+        Map<List<Long>, AllocationBalance> maintained = new HashMap<>();
+        for (Role role : roles)
+            for (Resource resource : resources)
+                maintained.put(Arrays.asList(role.getId(), resource.getId()), balanceService.getBalance(budget, role, resource));
+
+        balanceService.rebuild(budget);
+
+        for (Role role : roles) {
+            for (Resource resource : resources) {
+                AllocationBalance balance = maintained.get(Arrays.asList(role.getId(), resource.getId()));
+                AllocationBalance rebuilt = balanceService.getBalance(budget, role, resource);
+
+                assertSameAmount(rebuilt.getProposed(), balance.getProposed());
+                assertSameAmount(rebuilt.getAllocated(), balance.getAllocated());
+                assertSameAmount(rebuilt.getExpended(), balance.getExpended());
+                assertSameAmount(rebuilt.getPendingPayment(), balance.getPendingPayment());
+                assertSameAmount(rebuilt.getPendingApproval(), balance.getPendingApproval());
+            }
+        }
+    }
+
+    private Payment newPayment(Money amount, boolean paid) {
+        Payment payment = new Payment(user.getName(), amount, paid);
+        payment.setMethod(method);
+        payment.setTime(LocalDateTime.now());
+        payment.setDescription("Test ledger");
+        return payment;
+    }
+
+    private static <T> Money sum(List<T> rows, Function<T, Money> amount) {
+        return rows.stream().map(amount).reduce(Money.getZERO(), Money::plus);
+    }
+
+    private static Money sumPending(List<Requisition> requisitions, Predicate<Requisition> state) {
+        return requisitions.stream().filter(state).map(Requisition::getPendingAmount).reduce(Money.getZERO(), Money::plus);
+    }
+}
@@ -0,0 +1,215 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.PlanFixtures;
+import com.niafikra.dimension.plan.domain.*;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.niafikra.dimension.plan.PlanFixtures.assertSameAmount;
+import static com.niafikra.dimension.plan.PlanFixtures.money;
+import static com.niafikra.dimension.plan.service.AllocationImportReader.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares importing an allocations spreadsheet with proposing the same lines one by one
+ */
+@SpringBootTest
+class AllocationImportTest {
+
+    @Autowired
+    private AllocationService allocationService;
+
+    @Autowired
+    private AllocationBalanceService balanceService;
+
+    @Autowired
+    private PlanFixtures fixtures;
+
+    private User planner;
+    private CostCenter costCenter;
+    private List<Role> roles = new ArrayList<>();
+    private List<Resource> resources = new ArrayList<>();
+
+    @BeforeEach
+    void createLines() {
+        planner = fixtures.createUser();
+        for (int i = 0; i < 4; i++) resources.add(fixtures.createResource());
+        for (int i = 0; i < 2; i++) roles.add(fixtures.createRole(resources, planner));
+        costCenter = fixtures.createCostCenter(Collections.singleton(planner), resources, roles.toArray(new Role[0]));
+    }
+
+    @Test
+    void importMatchesProposingLineByLine() {
+        Budget proposedBudget = fixtures.createDraftBudget(costCenter, planner, money("1000000"));
+        Budget importedBudget = fixtures.createDraftBudget(costCenter, planner, money("1000000"));
+
+        List<Object[]> lines = new ArrayList<>();
+        int line = 0;
+        for (Role role : roles) {
+            for (Resource resource : resources) {
+                line++;
+                lines.add(new Object[]{role.getId(), resource.getId(), line + "00.75", "Line " + line});
+            }
+        }
+
+        fixtures.runAs(planner, () -> {
+            for (Object[] values : lines) {
+                allocationService.propose(proposedBudget, role((Long) values[0]), resource((Long) values[1]),
+                        money((String) values[2]), (String) values[3], "Test import");
+            }
+
+            AllocationImportReport report = importLines(importedBudget, lines);
+            assertFalse(report.hasErrors(), report::toString);
+            assertEquals(lines.size(), report.getCreated());
+        });
+
+        for (Role role : roles) {
+            for (Resource resource : resources) {
+                Allocation proposed = allocationService.getAllocation(proposedBudget, role, resource);
+                Allocation imported = allocationService.getAllocation(importedBudget, role, resource);
+                assertSameAmount(proposed.getProposedAmount(), imported.getProposedAmount());
+                assertEquals(proposed.getDescription(), imported.getDescription());
+
+                assertSameAmount(
+                        balanceService.getBalance(proposedBudget, role, resource).getProposed(),
+                        balanceService.getBalance(importedBudget, role, resource).getProposed());
+            }
+        }
+        assertSameAmount(
+                allocationService.calculateTotalProposed(proposedBudget, null, null),
+                allocationService.calculateTotalProposed(importedBudget, null, null));
+    }
+
+    @Test
+    void invalidRowLeavesAllocationsUntouched() {
+        Budget budget = fixtures.createDraftBudget(costCenter, planner, money("1000000"));
+        Role role = roles.get(0);
+
+        List<Object[]> lines = new ArrayList<>();
+        lines.add(new Object[]{role.getId(), resources.get(0).getId(), "100", "Valid"});
+        lines.add(new Object[]{-1L, resources.get(1).getId(), "200", "Unknown role"});
+
+        fixtures.runAs(planner, () -> {
+            AllocationImportReport report = importLines(budget, lines);
+            assertTrue(report.hasErrors());
+            assertEquals(1, report.getErrors().size(), report::toString);
+        });
+
+        assertFalse(allocationService.isAllocated(budget, role, resources.get(0)));
+        assertTrue(allocationService.calculateTotalProposed(budget, null, null).isZero());
+    }
+
+    @Test
+    void storedAmountsAreImportedFromXlsx() {
+        assertStoredAmountsImported(new XSSFWorkbook());
+    }
+
+    @Test
+    void storedAmountsAreImportedFromXls() {
+        assertStoredAmountsImported(new HSSFWorkbook());
+    }
+
+    /**
+     * Amounts whose cell format would display them rounded, in scientific notation or with a currency symbol,
+     * and an amount computed by a formula, are all imported as stored
+     */
+    private void assertStoredAmountsImported(Workbook workbook) {
+        Budget budget = fixtures.createDraftBudget(costCenter, planner, money("1000000000000"));
+        Role role = roles.get(0);
+
+        List<Object[]> lines = new ArrayList<>();
+        lines.add(new Object[]{role.getId(), resources.get(0).getId(), "1000.75", "Thousands format", "#,##0"});
+        lines.add(new Object[]{role.getId(), resources.get(1).getId(), "123456789012.25", "Large amount", null});
+        lines.add(new Object[]{role.getId(), resources.get(2).getId(), "=1000.25*2", "Formula", null});
+        lines.add(new Object[]{role.getId(), resources.get(3).getId(), "250.5", "Currency format", "\"$\"#,##0.00"});
+
+        fixtures.runAs(planner, () -> {
+            AllocationImportReport report = importLines(budget, workbook, lines);
+            assertFalse(report.hasErrors(), report::toString);
+            assertEquals(lines.size(), report.getCreated());
+        });
+
+        assertSameAmount(money("1000.75"), allocationService.getAllocation(budget, role, resources.get(0)).getProposedAmount());
+        assertSameAmount(money("123456789012.25"), allocationService.getAllocation(budget, role, resources.get(1)).getProposedAmount());
+        assertSameAmount(money("2000.5"), allocationService.getAllocation(budget, role, resources.get(2)).getProposedAmount());
+        assertSameAmount(money("250.5"), allocationService.getAllocation(budget, role, resources.get(3)).getProposedAmount());
+    }
+
+    private AllocationImportReport importLines(Budget budget, List<Object[]> lines) {
+        return importLines(budget, new XSSFWorkbook(), lines);
+    }
+
+    private AllocationImportReport importLines(Budget budget, Workbook workbook, List<Object[]> lines) {
+        try (InputStream stream = new ByteArrayInputStream(toSpreadsheet(workbook, lines))) {
+            return allocationService.processAllocationImport(budget, stream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A spreadsheet laid out like the allocations import template with role id, resource id, amount, description
+     * and optionally the format of the amount, amounts starting with = are formulas
+     */
+    private static byte[] toSpreadsheet(Workbook workbook, List<Object[]> lines) throws IOException {
+        try (Workbook written = workbook; ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            Sheet sheet = written.createSheet();
+            sheet.createRow(TOTAL_ROW).createCell(PROPOSED_AMOUNT_COLUMN).setCellValue("Total");
+            sheet.createRow(HEADERS_ROW).createCell(ROLE_ID_COLUMN).setCellValue("Role Id");
+
+            int rowNumber = ALLOCATIONS_START_ROW;
+            for (Object[] values : lines) {
+                Row row = sheet.createRow(rowNumber++);
+                row.createCell(ROLE_ID_COLUMN).setCellValue((Long) values[0]);
+                row.createCell(RESOURCE_ID_COLUMN).setCellValue((Long) values[1]);
+
+                Cell amount = row.createCell(PROPOSED_AMOUNT_COLUMN);
+                String value = (String) values[2];
+                if (value.startsWith("=")) amount.setCellFormula(value.substring(1));
+                else amount.setCellValue(Double.parseDouble(value));
+
+                if (values.length > 4 && values[4] != null) {
+                    CellStyle style = written.createCellStyle();
+                    style.setDataFormat(written.createDataFormat().getFormat((String) values[4]));
+                    amount.setCellStyle(style);
+                }
+
+                row.createCell(DESCRIPTION_COLUMN).setCellValue((String) values[3]);
+                row.createCell(REASON_COLUMN).setCellValue("Test import");
+            }
+
+            //store the results of the formulas as a spreadsheet application would
+            written.getCreationHelper().createFormulaEvaluator().evaluateAll();
+            written.write(out);
+            return out.toByteArray();
+        }
+    }
+
+    private Role role(Long id) {
+        return roles.stream().filter(role -> role.getId().equals(id)).findFirst().get();
+    }
+
+    private Resource resource(Long id) {
+        return resources.stream().filter(resource -> resource.getId().equals(id)).findFirst().get();
+    }
+}
@@ -0,0 +1,91 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.PlanFixtures;
+import com.niafikra.dimension.plan.domain.*;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.niafikra.dimension.plan.PlanFixtures.assertSameAmount;
+import static com.niafikra.dimension.plan.PlanFixtures.money;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Proposes on one budget from many threads at once, the fund only covers some of the proposals so
+ * without the budget lock several of them would pass the funds check together
+ */
+@SpringBootTest
+class AllocationProposalConcurrencyTest {
+
+    private static final int THREADS = 16;
+    private static final int FUNDED_PROPOSALS = 5;
+    private static final Money PROPOSED = money("1000");
+
+    @Autowired
+    private AllocationService allocationService;
+
+    @Autowired
+    private AllocationBalanceService balanceService;
+
+    @Autowired
+    private PlanFixtures fixtures;
+
+    @Test
+    void concurrentProposalsNeverExceedTheFund() throws Exception {
+        User planner = fixtures.createUser();
+        Role role = fixtures.createRole(planner);
+        CostCenter costCenter = fixtures.createCostCenter(Collections.singleton(planner), role);
+
+        Money fund = money(String.valueOf(1000 * FUNDED_PROPOSALS));
+        Budget budget = fixtures.createDraftBudget(costCenter, planner, fund);
+
+        List<Resource> resources = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) resources.add(fixtures.createResource());
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger accepted = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        List<Future<?>> proposals = new ArrayList<>();
+        try {
+            for (Resource resource : resources) {
+                proposals.add(executor.submit(() -> fixtures.runAs(planner, () -> {
+                    try {
+                        start.await();
+                        allocationService.propose(budget, role, resource, PROPOSED, "Stress test", "Stress test");
+                        accepted.incrementAndGet();
+                    } catch (IllegalStateException e) {
+                        rejected.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                })));
+            }
+
+            start.countDown();
+            for (Future<?> proposal : proposals) proposal.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Money proposed = allocationService.calculateTotalProposed(budget, null, null);
+        assertFalse(proposed.isGreaterThan(fund), () -> "Proposed " + proposed + " exceeds the fund " + fund);
+        assertEquals(FUNDED_PROPOSALS, accepted.get());
+        assertEquals(THREADS - FUNDED_PROPOSALS, rejected.get());
+
+        //the ledger must agree with the allocations it was applied from
+        Money ledgerProposed = Money.getZERO();
+        for (Resource resource : resources)
+            ledgerProposed = ledgerProposed.plus(balanceService.getBalance(budget, role, resource).getProposed());
+        assertSameAmount(proposed, ledgerProposed);
+    }
+}
@@ -0,0 +1,134 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.PlanFixtures;
+import com.niafikra.dimension.plan.domain.*;
+import com.niafikra.dimension.plan.repository.AllocationRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+
+import static com.niafikra.dimension.plan.PlanFixtures.assertSameAmount;
+import static com.niafikra.dimension.plan.PlanFixtures.money;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+@SpringBootTest
+class AllocationServiceTest {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AllocationServiceTest.class);
+
+    private static final int ALLOCATIONS = 500;
+
+    @Autowired
+    private AllocationService allocationService;
+
+    @Autowired
+    private AllocationRepository allocationRepository;
+
+    @Autowired
+    private BudgetService budgetService;
+
+    @Autowired
+    private PlanFixtures fixtures;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private User user;
+    private Role role;
+    private CostCenter costCenter;
+
+    @BeforeEach
+    void createFixtures() {
+        user = fixtures.createUser();
+        role = fixtures.createRole();
+        costCenter = fixtures.createCostCenter(role);
+    }
+
+    /**
+     * Times the bulk update against saving every allocation as allocate used to do, on two budgets with the same
+     * allocations, and checks both give the same allocated amounts
+     */
+    @Test
+    void allocateMatchesSavingEachAllocation() {
+        Budget perAllocation = createBudgetWithAllocations();
+        Budget bulk = createBudgetWithAllocations();
+
+        long start = System.currentTimeMillis();
+        new TransactionTemplate(transactionManager).execute(status -> {
+            for (Allocation allocation : allocationService.getAllocations(perAllocation, null, null)) {
+                allocation.setAllocatedAmount(allocation.getProposedAmount());
+                allocationRepository.save(allocation);
+            }
+            return null;
+        });
+        long perAllocationMillis = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        allocationService.allocate(bulk);
+        long bulkMillis = System.currentTimeMillis() - start;
+
+        LOGGER.info("Allocated {} allocations in {} ms saving each allocation and in {} ms with the bulk update",
+                ALLOCATIONS, perAllocationMillis, bulkMillis);
+
+        assertSameAmount(
+                allocationService.calculateTotalAllocated(perAllocation, null, null),
+                allocationService.calculateTotalAllocated(bulk, null, null));
+        for (Allocation allocation : allocationService.getAllocations(bulk, null, null))
+            assertSameAmount(allocation.getProposedAmount(), allocation.getAllocatedAmount());
+    }
+
+    @Test
+    void allocateLeavesNoStaleAllocationLoaded() {
+        Budget budget = createBudgetWithAllocations();
+
+        new TransactionTemplate(transactionManager).execute(status -> {
+            //loaded before the bulk update in the same persistence context
+            List<Allocation> loaded = allocationService.getAllocations(budget, null, null);
+
+            allocationService.allocate(budget);
+
+            for (Allocation allocation : loaded)
+                assertSameAmount(allocation.getProposedAmount(), allocation.getAllocatedAmount());
+            return null;
+        });
+    }
+
+    @Test
+    void allocateKeepsEntitiesOfTheCallerManaged() {
+        Budget budget = createBudgetWithAllocations();
+        String title = "Allocated " + budget.getTitle();
+
+        Long allocationId = new TransactionTemplate(transactionManager).execute(status -> {
+            Budget loaded = budgetService.getBudget(budget.getId());
+            Allocation allocation = allocationService.getAllocations(loaded, null, null).get(0);
+
+            allocationService.allocate(loaded);
+
+            //changed after the bulk update and saved by the commit of the caller
+            loaded.setTitle(title);
+            allocation.setDescription(title);
+            return allocation.getId();
+        });
+
+        assertEquals(title, budgetService.getBudget(budget.getId()).getTitle());
+        assertEquals(title, allocationRepository.findById(allocationId).get().getDescription());
+    }
+
+    private Budget createBudgetWithAllocations() {
+        Budget budget = fixtures.createBudget(costCenter, user, money("1000000"));
+        for (int i = 0; i < ALLOCATIONS; i++) {
+            Resource resource = fixtures.createResource();
+            fixtures.createAllocation(budget, role, resource, user, money(String.valueOf(100 + i)), Money.getZERO());
+        }
+        return budget;
+    }
+}
@@ -0,0 +1,68 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.plan.PlanFixtures;
+import com.niafikra.dimension.plan.domain.Budget;
+import com.niafikra.dimension.plan.domain.CostCenter;
+import com.niafikra.dimension.plan.repository.BudgetRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the chunked archiving of outdated budgets with filtering the loaded budgets,
+ * the chunk is smaller than the outdated budgets so that several chunks are archived
+ */
+@SpringBootTest(properties = "dimension.budget.archiving-chunk-size=3")
+class BudgetServiceTest {
+
+    @Autowired
+    private BudgetService budgetService;
+
+    @Autowired
+    private BudgetRepository budgetRepository;
+
+    @Autowired
+    private PlanFixtures fixtures;
+
+    @Value("${dimension.budget.archiving-outdated-threshold-months}")
+    private int thresholdMonths;
+
+    private List<Budget> budgets = new ArrayList<>();
+
+    @BeforeEach
+    void createBudgets() {
+        User user = fixtures.createUser();
+        CostCenter costCenter = fixtures.createCostCenter(fixtures.createRole(user));
+        LocalDate threshold = LocalDate.now().minusMonths(thresholdMonths);
+
+        for (int i = 1; i <= 8; i++) {
+            budgets.add(fixtures.createEndedBudget(costCenter, user, threshold.minusMonths(i), i % 4 == 0));
+            budgets.add(fixtures.createEndedBudget(costCenter, user, threshold.plusMonths(i), false));
+        }
+    }
+
+    @Test
+    void archivingMatchesOutdatedLoadedBudgets() {
+        LocalDate endedBefore = LocalDate.now().minusMonths(thresholdMonths);
+
+        budgetService.archiveOutdatedBudgets();
+
+        for (Budget created : budgets) {
+            boolean outdated = !created.isArchived() && created.getEndDate().isBefore(endedBefore);
+            Budget reloaded = budgetRepository.findById(created.getId()).get();
+
+            assertEquals(created.isArchived() || outdated, reloaded.isArchived(), created::toString);
+            assertEquals(outdated ? created.getVersion() + 1 : created.getVersion(), (int) reloaded.getVersion(),
+                    created::toString);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.PlanFixtures;
+import com.niafikra.dimension.plan.domain.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static com.niafikra.dimension.plan.PlanFixtures.assertSameAmount;
+import static com.niafikra.dimension.plan.PlanFixtures.money;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares the payment run with paying the same requisitions one by one
+ */
+@SpringBootTest
+class PaymentRunTest {
+
+    private static final int REQUISITIONS = 20;
+
+    @Autowired
+    private RequisitionService requisitionService;
+
+    @Autowired
+    private AllocationBalanceService balanceService;
+
+    @Autowired
+    private PlanFixtures fixtures;
+
+    private User user;
+    private Role role;
+    private Resource resource;
+    private CostCenter costCenter;
+    private PaymentMethod method;
+
+    @BeforeEach
+    void createLine() {
+        user = fixtures.createUser();
+        resource = fixtures.createResource();
+        role = fixtures.createRole(Collections.singleton(resource), user);
+        costCenter = fixtures.createCostCenter(Collections.singleton(user), Collections.singleton(resource), role);
+        method = fixtures.createPaymentMethod();
+    }
+
+    @Test
+    void paymentRunMatchesSinglePayments() {
+        Budget singleBudget = createBudget();
+        Budget runBudget = createBudget();
+        List<Requisition> single = createRequisitions(singleBudget);
+        List<Requisition> run = createRequisitions(runBudget);
+
+        fixtures.runAs(user, () -> {
+            for (Requisition requisition : single) {
+                Payment payment = new Payment(user.getName(), halfOf(requisition), true);
+                payment.setMethod(method);
+                payment.setDescription("Single payment");
+                requisitionService.pay(requisition, payment, UUID.randomUUID().toString());
+            }
+
+            List<PaymentInstruction> instructions = new ArrayList<>();
+            for (Requisition requisition : run)
+                instructions.add(new PaymentInstruction(requisition, halfOf(requisition), method, "", UUID.randomUUID().toString()));
+
+            PaymentRunReport report = requisitionService.pay(instructions);
+            assertEquals(REQUISITIONS, report.count(PaymentRunReport.Status.PAID), report::toString);
+        });
+
+        for (int i = 0; i < REQUISITIONS; i++) {
+            Requisition paidSingly = requisitionService.getRequisitionDetail(single.get(i).getId());
+            Requisition paidInRun = requisitionService.getRequisitionDetail(run.get(i).getId());
+            assertSameAmount(paidSingly.getPaidAmount(), paidInRun.getPaidAmount());
+            assertSameAmount(paidSingly.getPendingAmount(), paidInRun.getPendingAmount());
+        }
+
+        assertSameAmount(
+                balanceService.getBalance(singleBudget, role, resource).getPendingPayment(),
+                balanceService.getBalance(runBudget, role, resource).getPendingPayment());
+    }
+
+    @Test
+    void paymentRunReportsFailedValidationAndContinues() {
+        Budget budget = createBudget();
+        List<Requisition> requisitions = createRequisitions(budget);
+
+        //a requisition without its budget line fails the checks with an unexpected exception
+        Requisition broken = new Requisition();
+        broken.setId(requisitions.get(0).getId());
+
+        List<PaymentInstruction> instructions = new ArrayList<>();
+        instructions.add(new PaymentInstruction(broken, money("10"), method, "", UUID.randomUUID().toString()));
+        for (Requisition requisition : requisitions.subList(1, REQUISITIONS))
+            instructions.add(new PaymentInstruction(requisition, halfOf(requisition), method, "", UUID.randomUUID().toString()));
+
+        fixtures.runAs(user, () -> {
+            PaymentRunReport report = requisitionService.pay(instructions);
+
+            assertEquals(PaymentRunReport.Status.REJECTED, report.getItems().get(0).getStatus());
+            assertEquals(REQUISITIONS - 1, report.count(PaymentRunReport.Status.PAID), report::toString);
+        });
+    }
+
+    private Budget createBudget() {
+        Money fund = money(String.valueOf(1000 * REQUISITIONS));
+        Budget budget = fixtures.createBudget(costCenter, user, fund);
+        fixtures.createAllocation(budget, role, resource, user, fund, fund);
+        return budget;
+    }
+
+    private List<Requisition> createRequisitions(Budget budget) {
+        List<Requisition> requisitions = new ArrayList<>();
+        for (int i = 1; i <= REQUISITIONS; i++)
+            requisitions.add(fixtures.createRequisition(budget, role, resource, user, money(String.valueOf(10 * i)), true));
+        return requisitions;
+    }
+
+    private static Money halfOf(Requisition requisition) {
+        return new Money(requisition.getApprovedAmount().getAmount().divide(BigDecimal.valueOf(2)));
+    }
+}
@@ -0,0 +1,150 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.PlanFixtures;
+import com.niafikra.dimension.plan.domain.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import static com.niafikra.dimension.plan.PlanFixtures.assertSameAmount;
+import static com.niafikra.dimension.plan.PlanFixtures.money;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Pays one requisition from many threads at once
+ */
+@SpringBootTest
+class RequisitionPaymentConcurrencyTest {
+
+    private static final int THREADS = 16;
+    private static final int PAYABLE_PAYMENTS = 5;
+    private static final Money PAYMENT = money("1000");
+
+    @Autowired
+    private RequisitionService requisitionService;
+
+    @Autowired
+    private PlanFixtures fixtures;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private User user;
+    private PaymentMethod method;
+    private Requisition requisition;
+
+    @BeforeEach
+    void createRequisition() {
+        user = fixtures.createUser();
+        Resource resource = fixtures.createResource();
+        Role role = fixtures.createRole(Collections.singleton(resource), user);
+        CostCenter costCenter = fixtures.createCostCenter(Collections.singleton(user), Collections.singleton(resource), role);
+
+        Money approved = money(String.valueOf(1000 * PAYABLE_PAYMENTS));
+        Budget budget = fixtures.createBudget(costCenter, user, approved);
+        fixtures.createAllocation(budget, role, resource, user, approved, approved);
+
+        method = fixtures.createPaymentMethod();
+        requisition = fixtures.createRequisition(budget, role, resource, user, approved, true);
+    }
+
+    @Test
+    void concurrentPaymentsNeverOverpay() throws Exception {
+        assertNeverOverpaid(thread -> requisitionService.pay(requisition, newPayment(), "payment " + thread));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    void concurrentPaymentsWithoutKeyNeverOverpay() throws Exception {
+        assertNeverOverpaid(thread -> requisitionService.pay(requisition, newPayment()));
+    }
+
+    private void assertNeverOverpaid(IntConsumer pay) throws Exception {
+        AtomicInteger paid = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+
+        runConcurrently(thread -> {
+            try {
+                pay.accept(thread);
+                paid.incrementAndGet();
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                rejected.incrementAndGet();
+            }
+        });
+
+        assertEquals(PAYABLE_PAYMENTS, paid.get());
+        assertEquals(THREADS - PAYABLE_PAYMENTS, rejected.get());
+
+        Requisition reloaded = requisitionService.getRequisitionDetail(requisition.getId());
+        assertSameAmount(reloaded.getApprovedAmount(), reloaded.getPaidAmount());
+        assertTrue(reloaded.isFulfilled());
+    }
+
+    @Test
+    void repeatedPaymentIsRecordedOnce() throws Exception {
+        Set<Long> expenses = ConcurrentHashMap.newKeySet();
+
+        runConcurrently(thread -> expenses.add(requisitionService.pay(requisition, newPayment(), "repeated payment").getId()));
+
+        assertEquals(1, expenses.size());
+        Requisition reloaded = requisitionService.getRequisitionDetail(requisition.getId());
+        assertEquals(1, reloaded.getExpenses().size());
+        assertSameAmount(PAYMENT, reloaded.getPaidAmount());
+    }
+
+    @Test
+    void payingWithinATransactionJoinsIt() {
+        fixtures.runAs(user, () -> new TransactionTemplate(transactionManager).execute(status -> {
+            requisitionService.pay(requisition, newPayment(), "payment in transaction");
+            status.setRollbackOnly();
+            return null;
+        }));
+
+        //rolled back with the transaction of the caller
+        Requisition reloaded = requisitionService.getRequisitionDetail(requisition.getId());
+        assertTrue(reloaded.getExpenses().isEmpty());
+        assertSameAmount(Money.getZERO(), reloaded.getPaidAmount());
+    }
+
+    private Payment newPayment() {
+        Payment payment = new Payment("Stress test", PAYMENT, true);
+        payment.setMethod(method);
+        payment.setDescription("Stress test");
+        return payment;
+    }
+
+    private void runConcurrently(IntConsumer action) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> tasks = new ArrayList<>();
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                int thread = i;
+                tasks.add(executor.submit(() -> fixtures.runAs(user, () -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    action.accept(thread);
+                })));
+            }
+
+            start.countDown();
+            for (Future<?> task : tasks) task.get(1, TimeUnit.MINUTES);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.niafikra.dimension.plan.service;
+
+import com.niafikra.dimension.core.security.domain.User;
+import com.niafikra.dimension.money.Money;
+import com.niafikra.dimension.plan.PlanFixtures;
+import com.niafikra.dimension.plan.domain.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+import static com.niafikra.dimension.plan.PlanFixtures.assertSameAmount;
+import static com.niafikra.dimension.plan.PlanFixtures.money;
+
+/**
+ * Compares the totals of many roles computed with grouped queries with the totals computed role by role
+ */
+@SpringBootTest
+class RoleTotalsTest {
+
+    @Autowired
+    private AllocationService allocationService;
+
+    @Autowired
+    private ExpenseService expenseService;
+
+    @Autowired
+    private RequisitionService requisitionService;
+
+    @Autowired
+    private PlanFixtures fixtures;
+
+    private Budget budget;
+    private Resource resource;
+    private List<Role> roles;
+    private List<Long> roleIds = new ArrayList<>();
+
+    @BeforeEach
+    void createLines() {
+        User user = fixtures.createUser();
+        PaymentMethod method = fixtures.createPaymentMethod();
+        resource = fixtures.createResource();
+        roles = Arrays.asList(fixtures.createRole(user), fixtures.createRole(user), fixtures.createRole(user));
+        roles.forEach(role -> roleIds.add(role.getId()));
+        budget = fixtures.createBudget(fixtures.createCostCenter(roles.toArray(new Role[0])), user, money("1000000"));
+
+        //the last role has nothing on the budget
+        for (int r = 0; r < 2; r++) {
+            Role role = roles.get(r);
+            for (int i = 1; i <= 3; i++) {
+                fixtures.createAllocation(budget, role, fixtures.createResource(), user, money(r + "" + i + "00"), money(r + "" + i + "0.25"));
+                fixtures.createAllocation(budget, role, resource, user, money(r + "" + i + "00"), money(i + ".5"));
+
+                Payment payment = fixtures.createPayment(method, user, money(r + "" + i + ".75"), LocalDateTime.now());
+                fixtures.createExpense(budget, role, resource, user, payment);
+                fixtures.createRequisition(budget, role, resource, user, money(r + "" + i + "5"), true);
+            }
+        }
+    }
+
+    @Test
+    void rolesAllocatedMatchesSingleRoleTotals() {
+        assertMatchesSingleRoleTotals(
+                allocationService.calculateTotalRolesAllocated(budget, roleIds, null, null, null),
+                role -> allocationService.calculateTotalAllocated(budget, role, null));
+        assertMatchesSingleRoleTotals(
+                allocationService.calculateTotalRolesAllocated(budget, roleIds, resource, null, null),
+                role -> allocationService.calculateTotalAllocated(budget, role, resource));
+    }
+
+    @Test
+    void rolesExpenditureMatchesSingleRoleTotals() {
+        assertMatchesSingleRoleTotals(
+                expenseService.calculateTotalRolesExpenditure(budget, roleIds, resource),
+                role -> expenseService.calculateTotalExpenditure(budget, role, resource));
+    }
+
+    @Test
+    void rolesPendingPaymentsMatchSingleRoleTotals() {
+        assertMatchesSingleRoleTotals(
+                requisitionService.calculateTotalRolesPendingPayments(budget, roleIds, resource),
+                role -> requisitionService.calculateTotalPendingPayments(budget, role, resource));
+    }
+
+    private void assertMatchesSingleRoleTotals(RoleTotals totals, Function<Role, Money> roleTotal) {
+        Money total = Money.getZERO();
+        for (Role role : roles) {
+            Money expected = roleTotal.apply(role);
+            assertSameAmount(expected, totals.get(role));
+            total = total.plus(expected);
+        }
+        assertSameAmount(total, totals.getTotal());
+    }
+}